@@ -2,6 +2,7 @@ package com.myname.cemount;
 
 import com.myname.cemount.commands.*;
 import com.myname.cemount.core.CommitCommand;
+import com.myname.cemount.core.ObjectId;
 import com.myname.cemount.core.Pair;
 import com.myname.cemount.server.ObjectUtils;
 
@@ -62,10 +63,19 @@ public class Cem {
             case "clone":
                 CloneCommand(slice(args,1));
                 break;
+            case "status":
+                StatusCommand.execute(slice(args,1));
+                break;
+            case "watch":
+                WatchCommand.execute(slice(args,1));
+                break;
+            case "repack":
+                RepackCommand.execute(slice(args,1));
+                break;
             case "t":
                 Path repoRoot = Paths.get(".").toAbsolutePath().normalize();
                 Path cemDir = repoRoot.resolve(CEM_DIR);
-                String sha = Files.readString(cemDir.resolve("refs/heads/master")).trim();
+                ObjectId sha = ObjectId.fromHex(Files.readString(cemDir.resolve("refs/heads/master")).trim());
                 String text =  ObjectUtils.readCommitText(cemDir,sha);
 
                 System.out.println(text);
@@ -92,11 +102,14 @@ public class Cem {
         System.out.println("  init     Initialize a new CEMount repository");
         System.out.println("  add      Add files to the CEMount index");
         System.out.println("  commit   Commit the current index");
+        System.out.println("  status   Show staged, changed and untracked files");
         System.out.println("  log      Show commit history");
         System.out.println("  remote   Manage remote repositories (e.g. local paths or tcp://host:port)");
         System.out.println("  server   Stars a CEMount data base");
         System.out.println("  fetch    Fetches the latest version");
         System.out.println("  pull     Pulls the latest version from the remote");
+        System.out.println("  repack   Packs loose objects into a single pack file");
+        System.out.println("  watch    Track changed files for status and add (--stop ends it)");
         // more commands coming ;)
     }
 
@@ -114,7 +127,9 @@ public class Cem {
         System.out.println("\tInitialize a new CEMount repository");
         System.out.println();
         System.out.println(BOLD + "add" + RESET);
-        System.out.println("\tAdd files to the CEMount index");
+        System.out.println("\tAdd files to the CEMount index, --jobs N sets how many files are hashed in parallel");
+        System.out.println("\t--chunk stores files of 1 MiB and up as content-defined chunks, so a small change");
+        System.out.println("\tto a large binary only stores and pushes the chunks around it");
         System.out.println();
         System.out.println(BOLD + "commit" + RESET);
         System.out.println("\tCommit the current index");
@@ -129,6 +144,8 @@ public class Cem {
         System.out.println("\tStars a CEMount data base");
         System.out.println(BOLD + "fetch" + RESET);
         System.out.println("\tupdates the FETCH_HEAD used for the pull command");
+        System.out.println(BOLD + "repack" + RESET);
+        System.out.println("\tPacks loose objects into a single pack file, -a also merges existing packs");
 
     }
     /**
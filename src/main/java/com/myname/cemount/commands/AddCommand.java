@@ -1,114 +1,241 @@
 package com.myname.cemount.commands;
 
+import com.myname.cemount.core.Index;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.Pair;
+import com.myname.cemount.core.WatchDaemon;
 import com.myname.cemount.server.ObjectUtils;
 
 import java.io.File;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.security.MessageDigest;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.stream.Stream;
-import java.util.zip.Deflater;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class AddCommand {
     private static final String CEM_DIR           = ".cemount";
     private static final String OBJECTS_SUBDIR    = "objects";
-    private static final String INDEX_TXT         = "index.txt";
 
     public static void execute(String[] args) {
-        if (args.length > 0) {
-            System.err.println("Usage: cem add");
-            return;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean chunk = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--jobs") && i + 1 < args.length) {
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+                if (jobs < 1) {
+                    System.err.println("cem add: --jobs needs a positive number");
+                    return;
+                }
+            } else if (args[i].equals("--chunk")) {
+                // large files become content-defined chunks, see ObjectUtils.storeFile
+                chunk = true;
+            } else {
+                System.err.println("Usage: cem add [--jobs N] [--chunk]");
+                return;
+            }
         }
         Path repoRoot = Paths.get("").toAbsolutePath().normalize();
         Path cemDir   = repoRoot.resolve(CEM_DIR);
         Path objects  = cemDir.resolve(OBJECTS_SUBDIR);
-        Path indexTxt = cemDir.resolve(INDEX_TXT);
 
         if (Files.notExists(cemDir) || Files.notExists(objects)) {
             System.err.println("cem add: no repository found. Run `cem init` first.");
             return;
         }
 
+        Index index;
         try {
-            // Walk every file under repoRoot
-            try (Stream<Path> allPaths = Files.walk(repoRoot)) {
-                allPaths
-                .filter(Files::isRegularFile)
-                // ...and skip anything under .cemount itself
-                .filter(path -> !path.startsWith(cemDir))
-                .forEach(fileOnDisk -> {
-                    try {
-                        byte[] content = Files.readAllBytes(fileOnDisk);
-                        String header   = "blob " + content.length + "\0";
-                        byte[] hdrBs    = header.getBytes(StandardCharsets.UTF_8);
-
-                        byte[] store = new byte[hdrBs.length + content.length];
-                        System.arraycopy(hdrBs,0, store,0, hdrBs.length);
-                        System.arraycopy(content,0, store, hdrBs.length, content.length);
-
-                        String blobSha = sha1Hex(store);
-                        String dirName = blobSha.substring(0, 2);
-                        String fileName= blobSha.substring(2);
-
-                        Path objectDir  = objects.resolve(dirName);
-                        Path objectFile = objectDir.resolve(fileName);
-                        if (Files.notExists(objectFile)) {
-                            Files.createDirectories(objectDir);
-                            byte[] compressed = ObjectUtils.zlibCompress(store);
-                            Files.write(objectFile, compressed);
-                        }
-                        Path relPath = repoRoot.relativize(fileOnDisk.toAbsolutePath().normalize());
-                        String rel    = relPath.toString().replace(File.separatorChar, '/');
-                        System.out.printf("added %s%n", rel);
-
-                        List<String> lines = Files.exists(indexTxt)
-                                ? Files.readAllLines(indexTxt, StandardCharsets.UTF_8)
-                                : new ArrayList<>();
-
-                        List<String> keep = new ArrayList<>();
-                        for (String line : lines) {
-                            int sp = line.indexOf(' ');
-                            if (sp < 0) continue;
-                            String existingPath = line.substring(sp + 1);
-                            if (!existingPath.equals(rel)) {
-                                keep.add(line);
-                            }
-                        }
-                        keep.add(blobSha + " " + rel);
-
-                        Files.createDirectories(indexTxt.getParent());
-                        Files.write(indexTxt, keep, StandardCharsets.UTF_8);
-
-                    } catch (IOException e) {
-                        System.err.printf("cem add: I/O error adding %s: %s%n",
-                                fileOnDisk, e.getMessage());
-                    } catch (Exception e) {
-                        System.err.printf("cem add: error for %s: %s%n", fileOnDisk, e.getMessage());
-                    }
-                });
-            }
+            index = Index.load(cemDir);
+        } catch (IOException e) {
+            System.err.println("cem add: cannot read index: " + e.getMessage());
+            return;
+        }
 
+        // the walk feeds changed files to the pool, this thread is the only index writer.
+        // with one job the files are stored inline, a lone worker only adds hand-offs
+        ForkJoinPool pool = jobs > 1 ? new ForkJoinPool(jobs) : null;
+        Walker walker = new Walker(repoRoot, cemDir, index, pool, chunk);
+        // with `cem watch` running only what it saw change is visited
+        WatchDaemon.Dirty dirty = WatchDaemon.dirty(cemDir);
+        try {
+            if (dirty == null) {
+                Files.walkFileTree(repoRoot, walker);
+            } else {
+                for (String path : dirty.getPaths()) {
+                    Path p = repoRoot.resolve(path);
+                    if (Files.exists(p, LinkOption.NOFOLLOW_LINKS)) Files.walkFileTree(p, walker);
+                }
+            }
         } catch (IOException e) {
             System.err.println("cem add: failed to traverse repository: " + e.getMessage());
+            if (pool != null) pool.shutdownNow();
+            return;
         }
-    }
-
-    private static String sha1Hex(byte[] data) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] digest = md.digest(data);
-            StringBuilder sb = new StringBuilder(40);
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
+            // results in walk order, whatever order the workers finished in
+            for (Pending p : walker.pending) {
+                try {
+                    ObjectId blobSha = p.result.get();
+                    Index.Entry old = index.get(p.rel);
+                    index.put(index.create(p.rel, blobSha, p.stat));
+                    if (old == null || !old.getId().equals(blobSha)) {
+                        System.out.printf("added %s%n", p.rel);
+                    }
+                } catch (ExecutionException e) {
+                    walker.failed = true;
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        System.err.printf("cem add: I/O error adding %s: %s%n", p.rel, cause.getMessage());
+                    } else {
+                        System.err.printf("cem add: error for %s: %s%n", p.rel, cause);
+                    }
+                }
             }
-            return sb.toString();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("cem add: interrupted");
+            return;
+        } finally {
+            if (pool != null) pool.shutdown();
         }
+
+        // files that are gone from the working tree leave the index
+        List<String> removed = new ArrayList<>();
+        for (Index.Entry entry : index.entries()) {
+            if (walker.seen.contains(entry.getPath())) continue;
+            if (dirty == null || dirty.covers(entry.getPath())) removed.add(entry.getPath());
+        }
+        for (String path : removed) {
+            index.remove(path);
+            System.out.printf("removed %s%n", path);
+        }
+
+        if (!walker.pending.isEmpty() || !removed.isEmpty()) {
+            try {
+                index.write();
+            } catch (IOException e) {
+                System.err.println("cem add: cannot write index: " + e.getMessage());
+                return;
+            }
+        }
+        // the index now covers every path the daemon reported
+        if (dirty != null && !walker.failed) WatchDaemon.forget(cemDir, dirty);
     }
 
+    /** A changed file handed to the pool, with the stat data taken before it was read. */
+    private static class Pending {
+        final String rel;
+        final Index.Stat stat;
+        final Future<ObjectId> result;
+
+        Pending(String rel, Index.Stat stat, Future<ObjectId> result) {
+            this.rel = rel;
+            this.stat = stat;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Stats every working file and submits the ones whose stat data does not match
+     * their index entry to the pool, which reads, hashes and stores them.
+     */
+    private static class Walker extends SimpleFileVisitor<Path> {
+        private final Path repoRoot;
+        private final Path cemDir;
+        private final Index index;
+        private final ForkJoinPool pool;
+        private final boolean chunk;
+        private final Set<String> seen = new HashSet<>();
+        private final List<Pending> pending = new ArrayList<>();
+        private Map<String, ObjectId> headBlobs;
+        private boolean failed;
+
+        Walker(Path repoRoot, Path cemDir, Index index, ForkJoinPool pool, boolean chunk) {
+            this.repoRoot = repoRoot;
+            this.cemDir = cemDir;
+            this.index = index;
+            this.pool = pool;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            return dir.equals(cemDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path fileOnDisk, BasicFileAttributes attrs) {
+            // a `cem watch` cookie lives only until the daemon has seen it
+            if (WatchDaemon.isCookie(fileOnDisk)) return FileVisitResult.CONTINUE;
+            try {
+                if (attrs.isSymbolicLink()) {
+                    if (!Files.isRegularFile(fileOnDisk)) return FileVisitResult.CONTINUE;
+                    attrs = Files.readAttributes(fileOnDisk, BasicFileAttributes.class);
+                } else if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String rel = repoRoot.relativize(fileOnDisk).toString().replace(File.separatorChar, '/');
+                seen.add(rel);
+
+                Index.Stat stat = Index.stat(attrs);
+                if (index.getUnchanged(rel, stat) != null) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!chunk && attrs.size() > ObjectUtils.MAX_BLOB_SIZE) {
+                    failed = true;
+                    System.err.printf("cem add: %s is larger than 2 GB, add it with --chunk%n", rel);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                ObjectId base = headBlobs().get(rel);
+                FutureTask<ObjectId> task = new FutureTask<>(() -> ObjectUtils.storeFile(cemDir, fileOnDisk, base, chunk));
+                if (pool != null) {
+                    pool.execute(task);
+                } else {
+                    task.run();
+                }
+                pending.add(new Pending(rel, stat, task));
+            } catch (IOException e) {
+                failed = true;
+                System.err.printf("cem add: I/O error adding %s: %s%n",
+                        fileOnDisk, e.getMessage());
+            } catch (Exception e) {
+                failed = true;
+                System.err.printf("cem add: error for %s: %s%n", fileOnDisk, e.getMessage());
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+            failed = true;
+            System.err.printf("cem add: I/O error adding %s: %s%n", file, e.getMessage());
+            return FileVisitResult.CONTINUE;
+        }
 
+        /** Blobs of the current commit by path, the delta bases for changed files. Read on first use. */
+        private Map<String, ObjectId> headBlobs() {
+            if (headBlobs != null) return headBlobs;
+            headBlobs = new HashMap<>();
+            try {
+                ObjectId head = ObjectUtils.getRefId(cemDir, ObjectUtils.getBranch(cemDir));
+                if (head != null && ObjectUtils.hasObject(cemDir, head)) {
+                    for (Pair pair : ObjectUtils.getShaFromCommit(cemDir, head)) {
+                        headBlobs.put(pair.getFileName(), pair.getSha());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("cem add: warning: cannot read HEAD commit, storing full blobs: " + e.getMessage());
+            }
+            return headBlobs;
+        }
+    }
 }
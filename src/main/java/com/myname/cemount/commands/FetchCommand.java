@@ -1,16 +1,16 @@
 package com.myname.cemount.commands;
 
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.server.CommitGraph;
+import com.myname.cemount.server.ConnectionPool;
 import com.myname.cemount.server.ObjectUtils;
+import com.myname.cemount.server.PackWriter;
+import com.myname.cemount.server.Transport;
 
-import javax.imageio.stream.ImageInputStream;
 import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
 import java.util.Map;
 
 public class FetchCommand {
@@ -22,6 +22,7 @@ public class FetchCommand {
     private static final String HEAD_FILE  = "HEAD";
     private static final String FETCH_FILE = "FETCH_HEAD";
     private static final String ECHO_DIR       = "ECHO";
+    private static final int    PACK_LIMIT     = 16 * 1024 * 1024;
 
 
     public static void execute(String [] args) throws IOException {
@@ -47,49 +48,83 @@ public class FetchCommand {
         String serverIP = net[2];
 
         String branch = ObjectUtils.getBranch(cemDir);
-        String shaRef = ObjectUtils.getRef(cemDir,branch).trim();
 
-        try(Socket socket = new Socket(serverIP, Integer.parseInt(serverPort));
-            InputStream rawIn = socket.getInputStream();
-            BufferedInputStream bin = new BufferedInputStream(rawIn);
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))
-        ){
-            out.write("FETCH " + repoName + " " + branch + "\n");
-            out.flush();
+        try(Transport transport = Transport.connect(serverIP, Integer.parseInt(serverPort), repoName)){
+            fetch(transport, cemDir, repoName, branch);
+            ConnectionPool.release(transport);
+        }
+    }
 
-            String respons = ObjectUtils.readLine(bin).trim();
+    /**
+     * Run one FETCH on an open connection: the new commits go to FETCH_HEAD (over v2
+     * with their objects) and the connection is left ready for another command.
+     */
+    public static void fetch(Transport transport, Path cemDir, String repoName, String branch) throws IOException {
+        String shaRef = ObjectUtils.getRef(cemDir,branch).trim();
+        transport.writeText("FETCH " + repoName + " " + branch);
+        transport.flush();
 
-            if(respons.equals(shaRef)){
-                System.out.println("Already up to date.");
-                out.write(shaRef + "\n");
-                out.flush();
-                return;
-            }
-            out.write(shaRef + "\n");
-            out.flush();
+        String respons = transport.readText();
+        if (respons == null) {
+            throw new EOFException("server closed the connection");
+        }
+        respons = respons.trim();
 
-            String cntLine = ObjectUtils.readLine(bin).trim();
-            int count = Integer.parseInt(cntLine);
-            //System.out.println("nr of obj " + count);
+        if(respons.equals(shaRef)){
+            System.out.println("Already up to date.");
+            transport.writeText(shaRef);
+            transport.flush();
+            return;
+        }
+        transport.writeText(shaRef);
+        transport.flush();
 
-            String[] newSha = new String[count];
+        int count = Integer.parseInt(transport.readText().trim());
+        //System.out.println("nr of obj " + count);
+
+        String[] newSha = new String[count];
+        if (transport.version() >= 2) {
+            receivePack(transport, cemDir, newSha);
+        } else {
             for(int i = 0 ; i < count; i++){
-                newSha[i] = ObjectUtils.readLine(bin).trim();
-                Path commitPath = cemDir.resolve(ECHO_DIR).resolve(newSha[i].substring(0,2)).resolve(newSha[i].substring(2));
-                Path paretnDir = commitPath.getParent();
-                if(!Files.exists(paretnDir)){
-                    Files.createDirectories(paretnDir);
+                ObjectId commitSha = transport.readId();
+                newSha[i] = commitSha.name();
+                transport.readData(ObjectUtils.loosePath(cemDir.resolve(ECHO_DIR), commitSha));
+            }
+        }
+        //System.out.println(Arrays.toString(newSha));
+        Path fetchPath = cemDir.resolve(FETCH_FILE);
+        ObjectUtils.addToFile(fetchPath,newSha);
+        if (ObjectId.isId(respons)) {
+            try {
+                CommitGraph.of(cemDir).add(ObjectId.fromHex(respons));
+            } catch (IOException e) {
+                System.err.println("cem fetch: warning: could not update commit-graph: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * v2: the commits come oldest first, each followed by the objects it adds and
+     * END, and all of it goes into one new pack. Objects over PACK_LIMIT are streamed
+     * to loose files instead, so a large history never sits in memory.
+     */
+    private static void receivePack(Transport transport, Path cemDir, String[] newSha) throws IOException {
+        try (PackWriter pack = new PackWriter(cemDir)) {
+            // newSha is filled newest first, like v1
+            for (int i = newSha.length - 1; i >= 0; i--) {
+                ObjectId commitSha = transport.readId();
+                newSha[i] = commitSha.name();
+                byte[] commit = transport.readData();
+                if (!ObjectUtils.hasObject(cemDir, commitSha)) pack.add(commitSha, commit);
+                ObjectId sha;
+                while ((sha = transport.readIdOrEnd()) != null) {
+                    boolean had = ObjectUtils.hasObject(cemDir, sha);
+                    byte[] stored = transport.readData(ObjectUtils.loosePath(cemDir.resolve(OBJECTS), sha), PACK_LIMIT);
+                    if (stored != null && !had) pack.add(sha, stored);
                 }
-                Files.deleteIfExists(commitPath);
-                Files.createFile(commitPath);
-                int len = Integer.parseInt(ObjectUtils.readLine(bin).trim());
-                byte[] raw = bin.readNBytes(len);
-                Files.write(commitPath,raw, StandardOpenOption.WRITE);
             }
-            //System.out.println(Arrays.toString(newSha));
-            Path fetchPath = cemDir.resolve(FETCH_FILE);
-            ObjectUtils.addToFile(fetchPath,newSha);
+            if (pack.count() > 0) pack.finish();
         }
     }
 }
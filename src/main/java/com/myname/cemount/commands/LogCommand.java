@@ -1,14 +1,17 @@
 package com.myname.cemount.commands;
 
-import java.io.ByteArrayOutputStream;
+import com.myname.cemount.core.Commit;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.Pair;
+import com.myname.cemount.server.ObjectUtils;
+
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.*;
-import java.util.zip.Inflater;
+import java.util.List;
 
 public class LogCommand {
 
@@ -58,114 +61,48 @@ public class LogCommand {
             commitSha = headContents;
         }
 
-         if (commitSha == null || commitSha.length() != 40) {
+         if (commitSha == null || !ObjectId.isId(commitSha)) {
              System.err.println("cem log: invalid commit SHA.");
              return;
         }
 
-        String dirName  = commitSha.substring(0, 2);
-        String fileName = commitSha.substring(2);
-        Path commitPath = objects.resolve(dirName).resolve(fileName);
-
-         if (Files.notExists(commitPath)) {
-             System.err.println("cem log: commit object not found for SHA: " + commitSha);
-             return;
-        }
-
-        byte[] compressed;
-        try {
-            compressed = Files.readAllBytes(commitPath);
-        } catch (IOException e) {
-            System.err.println("cem log: cannot read commit object: " + e.getMessage());
-            return;
-        }
-
-        byte[] storeBytes;
-        try {
-            storeBytes = zlibDecompress(compressed);
-        } catch (IOException e) {
-            System.err.println("cem log: decompression failed: " + e.getMessage());
-            return;
-        }
-
-        int nullIdx = -1;
-        for (int i = 0; i < storeBytes.length; i++) {
-            if (storeBytes[i] == 0) {
-                nullIdx = i;
-                break;
+        ObjectId sha = ObjectId.fromHex(commitSha);
+        boolean first = true;
+        while (sha != null) {
+            Commit commit;
+            try {
+                if (!ObjectUtils.hasObject(cemDir, sha)) {
+                    System.err.println("cem log: commit object not found for SHA: " + sha);
+                    return;
+                }
+                commit = ObjectUtils.readCommit(cemDir, sha);
+            } catch (IOException e) {
+                System.err.println("cem log: cannot read commit object: " + e.getMessage());
+                return;
             }
-        }
-
-         if (nullIdx < 0) {
-             System.err.println("cem log: malformed commit object (no null).");
-             return;
-        }
-        String commitContent = new String(
-                storeBytes,
-                nullIdx + 1,
-                storeBytes.length - (nullIdx + 1),
-                StandardCharsets.UTF_8
-        );
-
-        String[] lines = commitContent.split("\n");
-
-         if (lines.length < 2 || !lines[0].startsWith("timestamp: ") || !lines[1].startsWith("message:   ")) {
-             System.err.println("cem log: malformed commit body.");
-             return;
-         }
-
-        long epochSeconds;
-        try {
-            epochSeconds = Long.parseLong(lines[0].substring(11).trim());
-        } catch (Exception e) {
-            System.err.println("cem log: invalid timestamp.");
-            return;
-        }
-
-        String message = lines[1].substring(11);
 
-        int i = 2;
-        while (i < lines.length && !lines[i].isBlank()) {
-            i++;
-        }
-        List<String> files = new ArrayList<>();
-        for (int j = i + 1; j < lines.length; j++) {
-            String ln = lines[j].trim();
-            if (ln.isEmpty()) continue;
-            int sp = ln.indexOf(' ');
-            if (sp < 0) continue;
-            files.add(ln.substring(sp + 1));
-        }
-
-        // --- OUTPUT ---
-        System.out.println("commit " + commitSha);
-        String isoDate = DateTimeFormatter.ISO_INSTANT
-                .withZone(ZoneOffset.UTC)
-                .format(Instant.ofEpochSecond(epochSeconds));
-        System.out.println("Date:   " + isoDate);
-        System.out.println();
-        System.out.println("    " + message);
-        System.out.println();
-        for (String f : files) {
-            System.out.println("    " + f);
-        }
-    }
-
-    private static byte[] zlibDecompress(byte[] compressed) throws IOException {
-        Inflater inflater = new Inflater();
-        inflater.setInput(compressed);
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            byte[] buffer = new byte[8192];
-            while (!inflater.finished()) {
-                int count = inflater.inflate(buffer);
-                if (count == 0) break; // no more data
-                baos.write(buffer, 0, count);
+            // --- OUTPUT ---
+            if (!first) System.out.println();
+            first = false;
+            System.out.println("commit " + sha);
+            String isoDate = DateTimeFormatter.ISO_INSTANT
+                    .withZone(ZoneOffset.UTC)
+                    .format(Instant.ofEpochSecond(commit.getTimestamp()));
+            System.out.println("Date:   " + isoDate);
+            System.out.println();
+            System.out.println("    " + commit.getMessage());
+            System.out.println();
+            List<Pair> files;
+            try {
+                files = ObjectUtils.getShaFromCommit(cemDir, sha);
+            } catch (IOException e) {
+                System.err.println("cem log: cannot read tree of " + sha + ": " + e.getMessage());
+                return;
+            }
+            for (Pair f : files) {
+                System.out.println("    " + f.getFileName());
             }
-            return baos.toByteArray();
-        } catch (Exception e) {
-            throw new IOException(e);
-        } finally {
-            inflater.end();
+            sha = commit.getParent();
         }
     }
 }
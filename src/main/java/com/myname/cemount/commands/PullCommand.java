@@ -1,17 +1,23 @@
 package com.myname.cemount.commands;
 
+import com.myname.cemount.core.Checkout;
+import com.myname.cemount.core.Commit;
+import com.myname.cemount.core.Index;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.ObjectIdSet;
 import com.myname.cemount.core.Pair;
+import com.myname.cemount.core.Tree;
+import com.myname.cemount.server.ConnectionPool;
 import com.myname.cemount.server.ObjectUtils;
-import com.myname.cemount.commands.FetchCommand;
+import com.myname.cemount.server.Transport;
 
 import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 
@@ -22,6 +28,7 @@ public class PullCommand {
     private static final String FETCH_FILE          = "FETCH_HEAD";
     private static final String CONFIG              = "config";
     private static final String UPDATE_FILE         = "UPDATE";
+    private static final int    IN_MEMORY           = 1024 * 1024;
 
     public static void execute(String[] args) throws IOException {
         if (args.length != 1) {
@@ -39,8 +46,6 @@ public class PullCommand {
             return;
         }
 
-        FetchCommand.execute(new String[]{remoteName});
-
         String remoteUrl = remote.get(remoteName);
         String[] net = ObjectUtils.parseRemote(remoteUrl);
         String repoName = net[0];
@@ -50,63 +55,157 @@ public class PullCommand {
         String branch = ObjectUtils.getBranch(cemDir);
 
         Path fetchFile = cemDir.resolve(FETCH_FILE);
+        Path ref = cemDir.resolve(REFS_DIR_HEAD).resolve(branch);
 
-        try (Socket socket = new Socket(serverIP, Integer.parseInt(serverPort));
-             InputStream rawIn = socket.getInputStream();
-             BufferedInputStream bin = new BufferedInputStream(rawIn);
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
-
-
-            List<String> commitsSha = Files.readAllLines(fetchFile);
-            List<Pair> obj = new ArrayList<>();
-            String newHeadSha = new String();
-            long date = 0;
-            for(String sha : commitsSha){
-                long current = ObjectUtils.getTimeStamp(cemDir, sha);
-                if(current > date){
-                    newHeadSha = sha;
-                    date = current;
-                }
-                List<Pair> tmp = ObjectUtils.getShaFromCommit(cemDir,sha);
-                obj.addAll(tmp);
-            }
+        try {
+            // what the working tree holds now
+            ObjectId oldHead = Files.exists(ref) ? ObjectUtils.getRefId(cemDir, branch) : null;
+            List<ObjectId> commitsSha = new ArrayList<>();
+            Commit newHead = null;
+            // fetch and object transfer share one connection
+            try (Transport transport = Transport.connect(serverIP, Integer.parseInt(serverPort), repoName)) {
+                FetchCommand.fetch(transport, cemDir, repoName, branch);
 
-            out.write("PULL " + repoName + " " + branch + "\n");
-            out.flush();
-
-            for(Pair cObj : obj){
-                String shaO = cObj.getSha();
-                out.write(shaO + "\n");
-                out.flush();
-                Path objPath = cemDir.resolve(OBJECTS).resolve(shaO.substring(0,2)).resolve(shaO.substring(2));
-                Path parentPath = objPath.getParent();
-                if(!Files.exists(parentPath)){
-                    Files.createDirectories(parentPath);
+                for (String line : Files.readAllLines(fetchFile)) {
+                    if (ObjectId.isId(line.trim())) commitsSha.add(ObjectId.fromHex(line.trim()));
                 }
-                Files.deleteIfExists(objPath);
-                Files.createFile(objPath);
-                int len = Integer.parseInt(ObjectUtils.readLine(bin).trim());
-                byte[] rawObj  = bin.readNBytes(len);
-                Files.write(objPath,rawObj,StandardOpenOption.WRITE);
-                // wright to file
-                Path repo = cemDir.getParent();
-                String rawName = cObj.getFileName();
-                Path filePath = Paths.get(rawName);
-                if (filePath.isAbsolute()) {
-                    filePath = filePath.subpath(0, filePath.getNameCount());
+                for(ObjectId sha : commitsSha){
+                    Commit commit = ObjectUtils.readCommit(cemDir, sha);
+                    if(newHead == null || commit.getTimestamp() > newHead.getTimestamp()){
+                        newHead = commit;
+                    }
+                }
+
+                // a v2 fetch already brought the objects with the commits
+                if (!hasSnapshots(cemDir, commitsSha, newHead == null ? null : newHead.getId())) {
+                    transport.writeText("PULL " + repoName + " " + branch);
+                    if (transport.version() >= 2) {
+                        receiveWanted(transport, cemDir, commitsSha, oldHead);
+                    } else {
+                        receiveEach(transport, cemDir, commitsSha);
+                    }
                 }
-                Path currentFile  = repoRoot.resolve(filePath);
-                ObjectUtils.createPath(currentFile);
-                String content = ObjectUtils.readObjectText(cemDir, shaO);
-                Files.writeString(currentFile,content,StandardCharsets.UTF_8);
+                ConnectionPool.release(transport);
+            }
+            ObjectId newHeadSha = newHead == null ? null : newHead.getId();
+            // move the working tree and the index from our head to the new one
+            if (newHead != null) {
+                Index index = Index.load(cemDir);
+                new Checkout(repoRoot, cemDir, index).run(oldHead, newHeadSha);
+                index.write();
+            }
+            if (newHeadSha != null) {
+                ObjectUtils.updateRef(cemDir, REFS_DIR_HEAD + "/" + branch, newHeadSha);
             }
-            out.write("OK \n");
-            out.flush();
-            ObjectUtils.updateRef(cemDir, REFS_DIR_HEAD + "/" + branch, newHeadSha);
 
         } catch (IOException e) {
             System.err.println("pull failed: " + e.getMessage());
         }
     }
+
+    /**
+     * True if every commit's root tree (or, for a flat commit, every file) is stored,
+     * and every file of the new head too, so there is nothing left to ask for.
+     */
+    private static boolean hasSnapshots(Path cemDir, List<ObjectId> commits, ObjectId newHead) throws IOException {
+        for (ObjectId sha : commits) {
+            Commit commit = ObjectUtils.readCommit(cemDir, sha);
+            if (commit.getTree() != null) {
+                if (!ObjectUtils.hasObject(cemDir, commit.getTree())) return false;
+                continue;
+            }
+            for (Pair cObj : commit.getEntries()) {
+                if (!ObjectUtils.hasObject(cemDir, cObj.getSha())) return false;
+            }
+        }
+        if (newHead == null) return true;
+        for (Pair cObj : ObjectUtils.getShaFromCommit(cemDir, newHead)) {
+            if (!ObjectUtils.hasObject(cemDir, cObj.getSha())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * v2: the wanted commits and our tip go out in one message, and the server
+     * answers with every object they need in one stream. Objects we already have
+     * are read past without being written again.
+     */
+    private static void receiveWanted(Transport transport, Path cemDir, List<ObjectId> commits, ObjectId have) throws IOException {
+        for (ObjectId sha : commits) {
+            transport.writeId(sha);
+        }
+        transport.writeEnd();
+        if (have != null) {
+            transport.writeId(have);
+        }
+        transport.writeEnd();
+        transport.flush();
+
+        ObjectId sha;
+        while ((sha = transport.readIdOrEnd()) != null) {
+            Path target = ObjectUtils.loosePath(cemDir.resolve(OBJECTS), sha);
+            boolean had = ObjectUtils.hasObject(cemDir, sha);
+            // big objects are streamed to disk either way, small ones are only kept if new
+            byte[] stored = transport.readData(target, IN_MEMORY);
+            if (stored != null && !had) {
+                ObjectUtils.writeLoose(target, stored);
+            }
+        }
+    }
+
+    /**
+     * v1: ask for one object at a time, walking down from the root trees. A tree we
+     * already have is complete, so none of it is asked for. Received trees are kept
+     * in memory and stored last, children first, so an interrupted pull never leaves
+     * a stored tree with missing content.
+     */
+    private static void receiveEach(Transport transport, Path cemDir, List<ObjectId> commits) throws IOException {
+        Deque<ObjectId> wanted = new ArrayDeque<>();
+        ObjectIdSet requested = new ObjectIdSet();
+        ObjectIdSet trees = new ObjectIdSet();
+        for (ObjectId sha : commits) {
+            Commit commit = ObjectUtils.readCommit(cemDir, sha);
+            if (commit.getTree() != null) {
+                trees.add(commit.getTree());
+                want(cemDir, commit.getTree(), wanted, requested);
+            } else {
+                for (Pair cObj : commit.getEntries()) {
+                    want(cemDir, cObj.getSha(), wanted, requested);
+                }
+            }
+        }
+
+        List<byte[]> receivedTrees = new ArrayList<>();
+        while(!wanted.isEmpty()){
+            ObjectId shaO = wanted.poll();
+            transport.writeId(shaO);
+            transport.flush();
+            if (trees.contains(shaO)) {
+                byte[] raw = transport.readData();
+                receivedTrees.add(raw);
+                for (Tree.Entry e : ObjectUtils.decodeTree(shaO, raw).getEntries()) {
+                    if (e.isTree()) trees.add(e.getId());
+                    want(cemDir, e.getId(), wanted, requested);
+                }
+                continue;
+            }
+            transport.readData(ObjectUtils.loosePath(cemDir.resolve(OBJECTS), shaO));
+            // a chunked blob came as its manifest, fetch the chunks we do not have
+            List<ObjectId> chunks = ObjectUtils.chunks(cemDir, shaO);
+            if (chunks != null) {
+                for (ObjectId chunk : chunks) {
+                    want(cemDir, chunk, wanted, requested);
+                }
+            }
+        }
+        for (int i = receivedTrees.size() - 1; i >= 0; i--) {
+            ObjectUtils.storeObject(cemDir.resolve(OBJECTS), receivedTrees.get(i));
+        }
+        transport.writeEnd();
+        transport.flush();
+    }
+
+    private static void want(Path cemDir, ObjectId sha, Deque<ObjectId> wanted, ObjectIdSet requested) throws IOException {
+        if (!ObjectUtils.hasObject(cemDir, sha) && requested.add(sha)) wanted.add(sha);
+    }
 }
@@ -1,15 +1,19 @@
 package com.myname.cemount.commands;
 
-import com.myname.cemount.core.Pair;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.ObjectIdSet;
+import com.myname.cemount.server.CommitGraph;
+import com.myname.cemount.server.ConnectionPool;
 import com.myname.cemount.server.ObjectUtils;
+import com.myname.cemount.server.ObjectWalk;
+import com.myname.cemount.server.StoredObject;
+import com.myname.cemount.server.Transport;
 
 import java.io.*;
-import java.net.Socket;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class PushCommand {
     private static final String CEM_DIR    = ".cemount";
@@ -19,6 +23,7 @@ public class PushCommand {
     private static final String OBJECTS    = "objects";
     private static final String HEAD_FILE  = "HEAD";
     private static final String ECHO_FILE  = "ECHO";
+    private static final int    HAVE_BATCH = 4096;
 
 
     public static void execute(String[] args) throws IOException {
@@ -58,6 +63,50 @@ public class PushCommand {
         /// ...
     }
 
+    /**
+     * After a chunked blob's manifest the server answers "WANT n" and the ids of
+     * the chunks it does not have yet; only those are sent.
+     */
+    private static void sendWantedChunks(Transport transport, Path cemDir) throws IOException {
+        String want = transport.readText();
+        if (want == null || !want.startsWith("WANT ")) {
+            throw new IOException("expected WANT, got: " + want);
+        }
+        int n = Integer.parseInt(want.substring(5).trim());
+        List<ObjectId> wanted = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            wanted.add(transport.readId());
+        }
+        for (ObjectId chunk : wanted) {
+            transport.writeId(chunk);
+            try (StoredObject stored = ObjectUtils.openStoredObject(cemDir, chunk)) {
+                transport.writeData(stored);
+            }
+        }
+    }
+
+    /**
+     * Ask the server which of ids it already stores, HAVE_BATCH ids per round trip.
+     * Each answer is a bitset (see {@link BitSet#valueOf(byte[])}), bit i set if the
+     * server has the i-th id of the batch.
+     */
+    private static ObjectIdSet haveCheck(Transport transport, List<ObjectId> ids) throws IOException {
+        ObjectIdSet present = new ObjectIdSet();
+        for (int from = 0; from < ids.size(); from += HAVE_BATCH) {
+            int to = Math.min(ids.size(), from + HAVE_BATCH);
+            transport.writeText("HAVE " + (to - from));
+            for (int i = from; i < to; i++) {
+                transport.writeId(ids.get(i));
+            }
+            transport.flush();
+            BitSet bits = BitSet.valueOf(transport.readData());
+            for (int i = bits.nextSetBit(0); i >= 0 && i < to - from; i = bits.nextSetBit(i + 1)) {
+                present.add(ids.get(from + i));
+            }
+        }
+        return present;
+    }
+
     private static void pushOverTcp(String remoteUrl,
                                     String branch,
                                     String localSha,
@@ -68,78 +117,102 @@ public class PushCommand {
         String serverPort = net[1];
         String serverIP = net[2];
 
-        try (Socket socket = new Socket(serverIP, Integer.parseInt(serverPort));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
-        ) {
-            OutputStream rawOut = socket.getOutputStream();
-            out.write("PUSH " + repoName + " " + branch + "\n");
-            out.flush();
-
-            out.write(localSha + "\n");
-            out.flush();
+        try (Transport transport = Transport.connect(serverIP, Integer.parseInt(serverPort), repoName)) {
+            push(transport, repoName, branch, localSha, cemDir);
+            ConnectionPool.release(transport);
+        }
+    }
 
-            String respons = in.readLine().trim();
-            if(respons.equals("OK")){
-                return;
-            }
-            List<String> commits = findCommitsToPush(localSha, respons, cemDir);
-            if(commits.isEmpty()){
-                // not needed :)
-                System.out.println("Everything up-to-date.");
-                return;
+    private static void push(Transport transport,
+                             String repoName,
+                             String branch,
+                             String localSha,
+                             Path cemDir) throws IOException {
+        transport.writeText("PUSH " + repoName + " " + branch);
+        transport.writeText(localSha);
+        transport.flush();
+
+        String respons = transport.readText();
+        if (respons == null) {
+            throw new EOFException("server closed the connection");
+        }
+        respons = respons.trim();
+        if(respons.equals("OK")){
+            return;
+        }
+        ObjectId remoteTip = ObjectId.isId(respons) ? ObjectId.fromHex(respons) : null;
+        ObjectId localTip = ObjectId.fromHex(localSha);
+        CommitGraph graph = CommitGraph.of(cemDir);
+        graph.add(localTip);
+        if (remoteTip != null && graph.contains(remoteTip) && !graph.isAncestor(remoteTip, localTip)) {
+            ObjectId base = graph.mergeBase(remoteTip, localTip);
+            System.err.printf("cem push: warning: remote %s is not an ancestor of %s (merge base %s), its newer commits will be unreachable%n",
+                    remoteTip, localTip, base == null ? "none" : base.name());
+        }
+        List<ObjectId> commits = graph.commitsBetween(localTip, remoteTip);
+        if(commits.isEmpty()){
+            // not needed :)
+            System.out.println("Everything up-to-date.");
+            if (transport.version() >= 2) {
+                // a v1 server takes the hang-up instead, v2 keeps the connection
+                transport.writeText("DONE");
+                transport.flush();
             }
+            return;
+        }
 
-            out.write("COMMITS " + commits.size() + "\n");
-            for (String sha : commits) {
-                out.write(sha + "\n");
-                out.flush();
-                byte[] raw = ObjectUtils.loadCommit(cemDir,sha);
-                rawOut.write((raw.length + "\n").getBytes(UTF_8));
-                rawOut.write(raw);
-                rawOut.flush();
-                // send the obj for the files
-                List<Pair> addObj = ObjectUtils.getShaFromCommit(cemDir,sha);
-                for (int i = 0; i < addObj.size(); i++){
-                    String objSha = addObj.get(i).getSha();
-                    out.write(objSha +"\n");
-                    out.flush();
-                    byte[] rawObj = ObjectUtils.loadObject(cemDir, objSha);
-                    rawOut.write((rawObj.length + "\n").getBytes(UTF_8));
-                    rawOut.write(rawObj);
-                    rawOut.flush();
-
-                }
+        // every commit's parent is on the server already or comes earlier in this push
+        ObjectWalk walk = new ObjectWalk(cemDir, false);
+        // the trees and blobs each commit has that its parent does not
+        List<List<ObjectWalk.Outgoing>> perCommit = new ArrayList<>(commits.size());
+        List<ObjectId> listed = new ArrayList<>();
+        for (ObjectId sha : commits) {
+            List<ObjectWalk.Outgoing> objects = walk.objectsFor(sha, true);
+            perCommit.add(objects);
+            for (ObjectWalk.Outgoing obj : objects) listed.add(obj.getId());
+        }
+        // a v1 server cannot say, so it gets them all
+        ObjectIdSet onServer = transport.version() >= 2 ? haveCheck(transport, listed) : new ObjectIdSet();
+
+        transport.writeText("COMMITS " + commits.size());
+        for (int c = 0; c < commits.size(); c++) {
+            ObjectId sha = commits.get(c);
+            transport.writeId(sha);
+            transport.writeData(ObjectUtils.openCommit(cemDir, sha));
+            List<ObjectWalk.Outgoing> objects = new ArrayList<>();
+            for (ObjectWalk.Outgoing obj : perCommit.get(c)) {
+                if (!onServer.contains(obj.getId())) objects.add(obj);
             }
+            transport.writeText("OBJECTS " + objects.size());
+            for (ObjectWalk.Outgoing obj : objects) {
+                ObjectId objSha = obj.getId();
+                transport.writeId(objSha);
+                try (StoredObject stored = ObjectUtils.openStoredObject(cemDir, objSha)) {
+                    ObjectId base = ObjectUtils.deltaBase(stored);
+                    if (base != null && !base.equals(obj.getParentId()) && !walk.isListed(base)) {
+                        transport.writeData(ObjectUtils.openFullObject(cemDir, objSha));
+                    } else {
+                        transport.writeData(stored);
+                    }
+                }
+                if (ObjectUtils.chunks(cemDir, objSha) != null) {
+                    // the server answers with the chunks it lacks
+                    transport.flush();
+                    sendWantedChunks(transport, cemDir);
+                }
 
-            out.write("UPDATE_REF " + branch + " " + localSha + "\n");
-            out.flush();
-            String response = in.readLine();
-            System.out.println("[client] ◀ response: " + response);
-            rawOut.close();
-            if (!response.startsWith("OK")) {
-                System.err.println("Push failed: " + response);
-            } else {
-                System.out.println("Push successful.");
             }
         }
-    }
 
-    private static List<String> findCommitsToPush(String localSha,String remoteSha, Path cemDir) throws IOException {
-        List<String> CommitsToPush = new ArrayList<>();
-        CommitsToPush.add(localSha);
-        String parent = localSha;
-        while (true){
-            parent = ObjectUtils.getParent(cemDir,parent);
-            if(parent.equals(remoteSha)){
-                break;
-            }
-            CommitsToPush.add(parent);
-            if(parent.equals("origin")) break;
+        transport.writeText("UPDATE_REF " + branch + " " + localSha);
+        transport.flush();
+        String response = transport.readText();
+        System.out.println("[client] ◀ response: " + response);
+        if (response == null || !response.startsWith("OK")) {
+            System.err.println("Push failed: " + response);
+        } else {
+            System.out.println("Push successful.");
         }
-        CommitsToPush.remove("origin");
-        Collections.reverse(CommitsToPush);
-        return CommitsToPush;
     }
 
 }
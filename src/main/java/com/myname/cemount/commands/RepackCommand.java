@@ -0,0 +1,115 @@
+package com.myname.cemount.commands;
+
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.server.PackFile;
+import com.myname.cemount.server.PackWriter;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves loose objects (objects/xx/yyyy and ECHO/xx/yyyy) into a single pack.
+ * Usage: cem repack [-a]
+ *   -a  also fold every existing pack into the new one
+ */
+public class RepackCommand {
+    private static final String CEM_DIR        = ".cemount";
+    private static final String OBJECTS_SUBDIR = "objects";
+    private static final String ECHO_DIR       = "ECHO";
+    private static final long   MAX_PACKED_OBJECT = 1L << 30;
+
+    public static void execute(String[] args) {
+        boolean all = false;
+        for (String arg : args) {
+            if (arg.equals("-a")) {
+                all = true;
+            } else {
+                System.err.println("Usage: cem repack [-a]");
+                return;
+            }
+        }
+        Path repoRoot = Paths.get("").toAbsolutePath().normalize();
+        Path cemDir   = repoRoot.resolve(CEM_DIR);
+        if (Files.notExists(cemDir.resolve(OBJECTS_SUBDIR))) {
+            System.err.println("cem repack: no repository found. Run `cem init` first.");
+            return;
+        }
+        try {
+            repack(cemDir, all);
+        } catch (IOException e) {
+            System.err.println("cem repack: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pack the loose objects of a repository (client .cemount or server bare repo)
+     * and delete them once the pack is in place.
+     */
+    public static void repack(Path cemDir, boolean all) throws IOException {
+        List<Path> loose = new ArrayList<>();
+        collectLoose(cemDir.resolve(OBJECTS_SUBDIR), loose);
+        collectLoose(cemDir.resolve(ECHO_DIR), loose);
+        List<PackFile> oldPacks = all ? PackFile.packs(cemDir) : new ArrayList<>();
+
+        if (loose.isEmpty() && oldPacks.size() <= 1) {
+            System.out.println("Nothing to repack.");
+            return;
+        }
+
+        Path packPath;
+        int count;
+        try (PackWriter writer = new PackWriter(cemDir)) {
+            for (Path file : loose) {
+                ObjectId sha = ObjectId.fromHex(file.getParent().getFileName().toString() + file.getFileName());
+                writer.add(sha, Files.readAllBytes(file));
+            }
+            for (PackFile pack : oldPacks) {
+                for (int i = 0; i < pack.size(); i++) {
+                    writer.add(pack.idAt(i), pack.slice(i));
+                }
+            }
+            count = writer.count();
+            packPath = writer.finish();
+        }
+
+        for (Path file : loose) {
+            Files.deleteIfExists(file);
+            Path dir = file.getParent();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                if (!ds.iterator().hasNext()) Files.deleteIfExists(dir);
+            } catch (IOException ignored) {
+                // another file landed in the fan-out dir, keep it
+            }
+        }
+        for (PackFile pack : oldPacks) {
+            if (pack.getPackPath().equals(packPath)) continue;
+            Files.deleteIfExists(pack.getIdxPath());
+            Files.deleteIfExists(pack.getPackPath());
+        }
+        System.out.println("Packed " + count + " objects into " + packPath.getFileName());
+    }
+
+    private static void collectLoose(Path root, List<Path> out) throws IOException {
+        if (!Files.isDirectory(root)) return;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                String name = dir.getFileName().toString();
+                if (name.length() != 2 || !Files.isDirectory(dir)) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        // huge blobs stay loose, a pack entry is read into memory and mapped whole
+                        if (file.getFileName().toString().matches("[0-9a-f]{38}")
+                                && Files.size(file) <= MAX_PACKED_OBJECT) {
+                            out.add(file);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
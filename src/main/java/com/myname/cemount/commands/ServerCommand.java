@@ -2,7 +2,9 @@ package com.myname.cemount.commands;
 
 
 import com.myname.cemount.server.ClientHandler;
+import com.myname.cemount.server.CommitCache;
 import com.myname.cemount.server.RepositoryManager;
+import com.myname.cemount.server.SelectorServer;
 import com.myname.cemount.server.ViewCommand;
 
 import java.io.BufferedReader;
@@ -10,11 +12,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -30,8 +33,10 @@ import java.util.concurrent.Executors;
 public class ServerCommand {
     private static volatile boolean isRunning = true;
     private static final String CEM_DB_DIR = "CEMountDB";
-    private static final int MAX_THREADS = 10;
-    private static ServerSocket serverSocket;
+    // commands only hold a thread while they run, idle connections wait in the selector;
+    // also the default for how many threads may read or write objects at once
+    private static final int IO_THREADS = 32;
+    private static SelectorServer server;
     private static RepositoryManager repoMgr;
 
     public static final String BOLD = "\033[1m";
@@ -42,26 +47,58 @@ public class ServerCommand {
     private static final String HEAD_FILE      = "HEAD";
 
     public static void execute(String[] args){
-        if(args.length != 2){
-            System.err.println("Usage: cem server <port> <file path for CEMount>");
+        List<String> positional = new ArrayList<>();
+        boolean virtualThreads = false;
+        int diskLimit = IO_THREADS;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--virtual-threads":
+                    virtualThreads = true;
+                    break;
+                case "--disk-limit":
+                    try {
+                        diskLimit = Integer.parseInt(args[++i]);
+                    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                        diskLimit = 0;
+                    }
+                    if (diskLimit < 1) {
+                        System.err.println("fatal: --disk-limit takes a positive number");
+                        return;
+                    }
+                    break;
+                default:
+                    positional.add(args[i]);
+            }
+        }
+        if(positional.size() != 2){
+            System.err.println("Usage: cem server <port> <file path for CEMount> [--virtual-threads] [--disk-limit <n>]");
             return;
         }
         int port;
         try {
-            port = Integer.parseInt(args[0]);
+            port = Integer.parseInt(positional.get(0));
         } catch (NumberFormatException e) {
-            System.err.println("fatal: invalid port: " + args[0]);
+            System.err.println("fatal: invalid port: " + positional.get(0));
             return;
         }
+        ExecutorService pool;
+        if (virtualThreads) {
+            pool = virtualThreadExecutor();
+            if (pool == null) {
+                System.err.println("fatal: --virtual-threads needs Java 21 or newer");
+                return;
+            }
+        } else {
+            pool = Executors.newFixedThreadPool(IO_THREADS);
+        }
         Path dbDir;
         try{
-            dbDir = createDataBaseDir(args[1]);
+            dbDir = createDataBaseDir(positional.get(1));
             repoMgr = new RepositoryManager(dbDir, "master");
         }catch (IOException e){
             System.err.println("fatal: could not create CEM database dir: " + e.getMessage());
             return;
         }
-        ExecutorService pool = Executors.newFixedThreadPool(MAX_THREADS);
 
         new Thread(() -> {
             try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
@@ -95,6 +132,16 @@ public class ServerCommand {
                                 }
                                 ViewCommand.execute(dbDir.resolve(tokens[1]));
                                 break;
+                            case "repack":
+                                if(tokens.length != 2){
+                                    System.out.println("Error: the repack command takes 1 arg");
+                                    break;
+                                }
+                                RepackCommand.repack(dbDir.resolve(tokens[1]).resolve(CEM_DIR), true);
+                                break;
+                            case "cache":
+                                System.out.println(CommitCache.stats());
+                                break;
                             case "-h":
                                 showServerCommands();
                                 break;
@@ -111,15 +158,12 @@ public class ServerCommand {
         }, "CEM-Shutdown-Watcher").start();
 
         try{
-            serverSocket = new ServerSocket(port, 50, InetAddress.getByName("0.0.0.0"));
+            // one selector thread reads the commands, the I/O pool runs them
+            server = new SelectorServer(new InetSocketAddress(InetAddress.getByName("0.0.0.0"), port),
+                    pool, new ClientHandler(repoMgr, diskLimit));
             System.out.println("CEM server listening on port " + port);
             System.out.print("CEMount " + port + ": ");
-            while (isRunning){
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-                pool.submit(new ClientHandler(clientSocket, repoMgr ));
-                System.out.print(CEM_DB_DIR + " " + port + ": ");
-            }
+            server.run();
         } catch (IOException e) {
             if(isRunning){
                 System.err.println("fatal: server error: " + e.getMessage());
@@ -131,6 +175,18 @@ public class ServerCommand {
 
     }
 
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), looked up at run time so the
+     * default build still targets Java 11. Null if this JVM has no virtual threads.
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     private static Path createDataBaseDir(String path) throws IOException {
         Path serverPath = Paths.get(path).toAbsolutePath().normalize().resolve(ServerCommand.CEM_DB_DIR);
         Files.createDirectories(serverPath);
@@ -139,11 +195,7 @@ public class ServerCommand {
 
     private static void stop() {
         isRunning = false;
-        try {
-            if (serverSocket != null) serverSocket.close();
-        } catch (IOException e) {
-           // ...
-        }
+        if (server != null) server.close();
     }
     private static void listRepos(String path){
         File directory = new File(path);
@@ -178,6 +230,10 @@ public class ServerCommand {
         System.out.println("\tshows info of the repo aka time ect\n");
         System.out.println(BOLD + "view" + RESET);
         System.out.println("\tshows the contents of a file in a repo\n");
+        System.out.println(BOLD + "repack" + RESET);
+        System.out.println("\tpacks the loose objects of a repo into one pack file\n");
+        System.out.println(BOLD + "cache" + RESET);
+        System.out.println("\tshows size and hit/miss counters of the commit cache\n");
         System.out.println(BOLD + "shutdown" + RESET);
         System.out.println("\tshutdown kills the server and closes the port\n");
         System.out.println(BOLD + "-h" + RESET);
@@ -0,0 +1,145 @@
+package com.myname.cemount.commands;
+
+import com.myname.cemount.core.Index;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.Pair;
+import com.myname.cemount.core.WatchDaemon;
+import com.myname.cemount.server.ObjectUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * `cem status`: what is staged (the index against HEAD) and what is not (the
+ * working tree against the index). Working files whose stat data matches their
+ * index entry are not read. With `cem watch` running only the paths it saw
+ * change are looked at, otherwise the whole tree is walked.
+ */
+public class StatusCommand {
+    private static final String CEM_DIR = ".cemount";
+
+    public static void execute(String[] args) {
+        if (args.length != 0) {
+            System.err.println("usage: cem status");
+            return;
+        }
+        Path repoRoot = Paths.get("").toAbsolutePath().normalize();
+        Path cemDir = repoRoot.resolve(CEM_DIR);
+        if (Files.notExists(cemDir)) {
+            System.err.println("cem status: no repository found. Run `cem init` first.");
+            return;
+        }
+        try {
+            Index index = Index.load(cemDir);
+            String branch = ObjectUtils.getBranch(cemDir);
+            System.out.println("On branch " + branch);
+
+            // staged: the index against the files of HEAD
+            Map<String, ObjectId> head = new HashMap<>();
+            ObjectId headId = ObjectUtils.getRefId(cemDir, branch);
+            if (headId != null) {
+                for (Pair file : ObjectUtils.getShaFromCommit(cemDir, headId)) {
+                    head.put(file.getFileName(), file.getSha());
+                }
+            }
+            List<String> staged = new ArrayList<>();
+            for (Index.Entry entry : index.entries()) {
+                ObjectId was = head.remove(entry.getPath());
+                if (was == null) {
+                    staged.add("new file:   " + entry.getPath());
+                } else if (!was.equals(entry.getId())) {
+                    staged.add("modified:   " + entry.getPath());
+                }
+            }
+            for (String gone : new TreeSet<>(head.keySet())) {
+                staged.add("deleted:    " + gone);
+            }
+
+            // not staged: the working tree against the index
+            Scan scan = new Scan(repoRoot, cemDir, index);
+            WatchDaemon.Dirty dirty = WatchDaemon.dirty(cemDir);
+            if (dirty == null) {
+                Files.walkFileTree(repoRoot, scan);
+            } else {
+                for (String path : dirty.getPaths()) {
+                    Path p = repoRoot.resolve(path);
+                    if (Files.exists(p, LinkOption.NOFOLLOW_LINKS)) Files.walkFileTree(p, scan);
+                }
+            }
+            for (Index.Entry entry : index.entries()) {
+                if (scan.seen.contains(entry.getPath())) continue;
+                if (dirty == null || dirty.covers(entry.getPath())) {
+                    scan.changed.add("deleted:    " + entry.getPath());
+                }
+            }
+
+            print("Changes to be committed:", staged);
+            print("Changes not staged for commit:", new ArrayList<>(scan.changed));
+            print("Untracked files:", new ArrayList<>(scan.untracked));
+            if (staged.isEmpty() && scan.changed.isEmpty() && scan.untracked.isEmpty()) {
+                System.out.println("nothing to commit, working tree clean");
+            }
+        } catch (IOException e) {
+            System.err.println("cem status: " + e.getMessage());
+        }
+    }
+
+    private static void print(String title, List<String> lines) {
+        if (lines.isEmpty()) return;
+        System.out.println(title);
+        for (String line : lines) {
+            System.out.println("\t" + line);
+        }
+    }
+
+    /** Sorts working files into unchanged, changed and untracked; only stat-dirty files are hashed. */
+    private static class Scan extends SimpleFileVisitor<Path> {
+        private final Path repoRoot;
+        private final Path cemDir;
+        private final Index index;
+        private final Set<String> seen = new HashSet<>();
+        private final Set<String> changed = new TreeSet<>();
+        private final Set<String> untracked = new TreeSet<>();
+
+        Scan(Path repoRoot, Path cemDir, Index index) {
+            this.repoRoot = repoRoot;
+            this.cemDir = cemDir;
+            this.index = index;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            return dir.equals(cemDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            if (WatchDaemon.isCookie(file)) return FileVisitResult.CONTINUE;
+            if (attrs.isSymbolicLink()) {
+                if (!Files.isRegularFile(file)) return FileVisitResult.CONTINUE;
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } else if (!attrs.isRegularFile()) {
+                return FileVisitResult.CONTINUE;
+            }
+            String rel = repoRoot.relativize(file).toString().replace(File.separatorChar, '/');
+            seen.add(rel);
+            Index.Entry entry = index.get(rel);
+            if (entry == null) {
+                untracked.add(rel);
+            } else if (index.getUnchanged(rel, Index.stat(attrs)) == null
+                    && !ObjectUtils.hashFile(file).equals(entry.getId())) {
+                changed.add("modified:   " + rel);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+            System.err.printf("cem status: cannot read %s: %s%n", file, e.getMessage());
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.myname.cemount.commands;
+
+import com.myname.cemount.core.WatchDaemon;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * `cem watch` runs the {@link WatchDaemon} of this working tree in the foreground
+ * (start it with `&amp;` to keep it running); `cem watch --stop` ends it.
+ */
+public class WatchCommand {
+    private static final String CEM_DIR = ".cemount";
+
+    public static void execute(String[] args) {
+        boolean stop = args.length == 1 && args[0].equals("--stop");
+        if (args.length != 0 && !stop) {
+            System.err.println("usage: cem watch [--stop]");
+            return;
+        }
+        Path repoRoot = Paths.get("").toAbsolutePath().normalize();
+        Path cemDir = repoRoot.resolve(CEM_DIR);
+        if (Files.notExists(cemDir)) {
+            System.err.println("cem watch: no repository found. Run `cem init` first.");
+            return;
+        }
+        if (stop) {
+            if (!WatchDaemon.stop(cemDir)) System.err.println("cem watch: no daemon is running");
+            return;
+        }
+        if (!WatchDaemon.isSupported()) {
+            System.err.println("fatal: cem watch needs Java 16 or newer");
+            return;
+        }
+        try {
+            new WatchDaemon(repoRoot, cemDir).run();
+        } catch (IOException e) {
+            System.err.println("cem watch: " + e.getMessage());
+        }
+    }
+}
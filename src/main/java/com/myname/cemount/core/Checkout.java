@@ -0,0 +1,188 @@
+package com.myname.cemount.core;
+
+import com.myname.cemount.server.ObjectUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Moves the working tree from one commit to another. Only the paths that differ
+ * between the two commits are touched: a subtree with the same id on both sides
+ * is skipped without being read, so a pull that changes 3 files out of 50k reads
+ * a handful of trees and writes 3 files. Removed files go first, then the
+ * changed and added blobs are streamed out as raw bytes on a small pool of
+ * writer threads. The index gets an entry for every file written.
+ */
+public final class Checkout {
+    private static final int THREADS = 8;
+
+    private final Path workDir;
+    private final Path cemDir;
+    private final Index index;
+
+    public Checkout(Path workDir, Path cemDir, Index index) {
+        this.workDir = workDir;
+        this.cemDir = cemDir;
+        this.index = index;
+    }
+
+    /**
+     * @param from the commit the working tree holds now, or null if none
+     * @return how many files were written or removed
+     */
+    public int run(ObjectId from, ObjectId to) throws IOException {
+        Map<String, ObjectId> changes = diff(from, to);
+        List<Pair> writes = new ArrayList<>();
+        int removed = 0;
+        for (Map.Entry<String, ObjectId> change : changes.entrySet()) {
+            String path = change.getKey();
+            if (change.getValue() != null) {
+                if (!isCheckedOut(path, change.getValue())) writes.add(new Pair(change.getValue(), path));
+                continue;
+            }
+            // before any write, so a directory that replaces a file finds its name free
+            index.remove(path);
+            if (Files.deleteIfExists(target(path))) {
+                removed++;
+                pruneEmptyParents(target(path));
+            }
+        }
+        write(writes);
+        return removed + writes.size();
+    }
+
+    /** Path to new id for every file that differs, null for a file that is gone. */
+    private Map<String, ObjectId> diff(ObjectId from, ObjectId to) throws IOException {
+        Map<String, ObjectId> changes = new TreeMap<>();
+        Commit newCommit = ObjectUtils.readCommit(cemDir, to);
+        Commit oldCommit = from == null ? null : ObjectUtils.readCommit(cemDir, from);
+        if (oldCommit != null && oldCommit.getTree() != null && newCommit.getTree() != null) {
+            diffTrees(oldCommit.getTree(), newCommit.getTree(), "", changes);
+            return changes;
+        }
+        // a flat commit on either side, or nothing checked out: compare whole file lists
+        Map<String, ObjectId> old = new HashMap<>();
+        if (oldCommit != null) {
+            for (Pair file : ObjectUtils.getShaFromCommit(cemDir, from)) old.put(file.getFileName(), file.getSha());
+        }
+        for (Pair file : ObjectUtils.getShaFromCommit(cemDir, to)) {
+            ObjectId was = old.remove(file.getFileName());
+            if (!file.getSha().equals(was)) changes.put(file.getFileName(), file.getSha());
+        }
+        for (String gone : old.keySet()) changes.put(gone, null);
+        return changes;
+    }
+
+    /** Either side may be null: everything on the other side was added or removed. */
+    private void diffTrees(ObjectId oldTree, ObjectId newTree, String prefix, Map<String, ObjectId> out) throws IOException {
+        if (oldTree != null && oldTree.equals(newTree)) return;
+        Map<String, Tree.Entry> old = new HashMap<>();
+        if (oldTree != null) {
+            for (Tree.Entry e : ObjectUtils.readTree(cemDir, oldTree).getEntries()) old.put(e.getName(), e);
+        }
+        if (newTree != null) {
+            for (Tree.Entry e : ObjectUtils.readTree(cemDir, newTree).getEntries()) {
+                Tree.Entry was = old.remove(e.getName());
+                String path = prefix + e.getName();
+                if (e.isTree()) {
+                    if (was != null && !was.isTree()) out.put(path, null);
+                    diffTrees(was != null && was.isTree() ? was.getId() : null, e.getId(), path + "/", out);
+                } else {
+                    if (was != null && was.isTree()) diffTrees(was.getId(), null, path + "/", out);
+                    if (was == null || was.isTree() || !was.getId().equals(e.getId())) out.put(path, e.getId());
+                }
+            }
+        }
+        for (Tree.Entry gone : old.values()) {
+            if (gone.isTree()) {
+                diffTrees(gone.getId(), null, prefix + gone.getName() + "/", out);
+            } else {
+                out.put(prefix + gone.getName(), null);
+            }
+        }
+    }
+
+    /** The file already has this content, by the index's stat data. */
+    private boolean isCheckedOut(String path, ObjectId id) throws IOException {
+        Index.Entry staged = index.get(path);
+        Path file = target(path);
+        if (staged == null || !staged.getId().equals(id) || !Files.isRegularFile(file)) return false;
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        return index.getUnchanged(path, Index.stat(attrs)) != null;
+    }
+
+    private void write(List<Pair> writes) throws IOException {
+        if (writes.isEmpty()) return;
+        if (writes.size() == 1) {
+            Pair w = writes.get(0);
+            index.put(index.create(w.getFileName(), w.getSha(), writeFile(w)));
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(THREADS, writes.size()));
+        try {
+            List<Future<Index.Stat>> written = new ArrayList<>();
+            for (Pair w : writes) {
+                written.add(pool.submit(() -> writeFile(w)));
+            }
+            // the index is not thread-safe, it is only updated here
+            for (int i = 0; i < writes.size(); i++) {
+                Pair w = writes.get(i);
+                index.put(index.create(w.getFileName(), w.getSha(), await(written.get(i))));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** On a writer thread: the blob's bytes, streamed to the working file. */
+    private Index.Stat writeFile(Pair w) throws IOException {
+        Path file = target(w.getFileName());
+        ObjectUtils.writeBlob(cemDir, w.getSha(), file);
+        return Index.stat(Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    private static Index.Stat await(Future<Index.Stat> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during checkout");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("checkout failed", e.getCause());
+        }
+    }
+
+    private Path target(String path) {
+        Path filePath = Paths.get(path);
+        if (filePath.isAbsolute()) {
+            filePath = filePath.subpath(0, filePath.getNameCount());
+        }
+        return workDir.resolve(filePath);
+    }
+
+    /** Remove the directories a removed file leaves empty. */
+    private void pruneEmptyParents(Path file) throws IOException {
+        for (Path dir = file.getParent(); dir != null && !dir.equals(workDir); dir = dir.getParent()) {
+            try {
+                Files.delete(dir);
+            } catch (DirectoryNotEmptyException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.myname.cemount.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A commit object parsed once. The body written by {@link CommitCommand} is
+ *
+ *   timestamp: &lt;epoch seconds&gt;
+ *   message:   &lt;message&gt;
+ *   parent: &lt;sha&gt;          (absent on the first commit)
+ *   tree: &lt;sha&gt;            (root {@link Tree} of the snapshot)
+ *
+ * Commits written before trees existed have no tree line and list every file
+ * after the blank line instead, as "&lt;sha&gt; &lt;path&gt;"; {@link #getEntries()} returns
+ * those and is empty for a commit with a tree.
+ */
+public final class Commit {
+    private final ObjectId id;
+    private final long timestamp;
+    private final String message;
+    private final List<ObjectId> parents;
+    private final ObjectId tree;
+    private final List<Pair> entries;
+
+    public Commit(ObjectId id, long timestamp, String message, List<ObjectId> parents, ObjectId tree, List<Pair> entries) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.message = message;
+        this.parents = Collections.unmodifiableList(new ArrayList<>(parents));
+        this.tree = tree;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * @param body commit text without the "commit &lt;size&gt;\0" header
+     */
+    public static Commit parse(ObjectId id, String body) {
+        long timestamp = 0;
+        String message = "";
+        List<ObjectId> parents = new ArrayList<>(1);
+        ObjectId tree = null;
+        List<Pair> entries = new ArrayList<>();
+
+        String[] lines = body.split("\n");
+        int i = 0;
+        for (; i < lines.length && !lines[i].isEmpty(); i++) {
+            String line = lines[i];
+            if (line.startsWith("timestamp:")) {
+                try {
+                    timestamp = Long.parseLong(line.substring("timestamp:".length()).trim());
+                } catch (NumberFormatException ignored) {
+                    // leave 0, like a commit without a timestamp
+                }
+            } else if (line.startsWith("message:")) {
+                message = line.substring("message:".length()).trim();
+            } else if (line.startsWith("parent:")) {
+                String sha = line.substring("parent:".length()).trim();
+                if (ObjectId.isId(sha)) parents.add(ObjectId.fromHex(sha));
+            } else if (line.startsWith("tree:")) {
+                String sha = line.substring("tree:".length()).trim();
+                if (ObjectId.isId(sha)) tree = ObjectId.fromHex(sha);
+            }
+        }
+        for (; i < lines.length; i++) {
+            String line = lines[i];
+            int sp = line.indexOf(' ');
+            if (sp < 0) continue;
+            String sha = line.substring(0, sp);
+            if (!ObjectId.isId(sha)) continue;
+            entries.add(new Pair(ObjectId.fromHex(sha), line.substring(sp + 1)));
+        }
+        return new Commit(id, timestamp, message, parents, tree, entries);
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public List<ObjectId> getParents() {
+        return parents;
+    }
+
+    /** First parent, or null for the first commit of a branch. */
+    public ObjectId getParent() {
+        return parents.isEmpty() ? null : parents.get(0);
+    }
+
+    /** Root tree, or null for a commit in the old flat format. */
+    public ObjectId getTree() {
+        return tree;
+    }
+
+    /** The file list of a flat commit; use ObjectUtils.getShaFromCommit to list any commit. */
+    public List<Pair> getEntries() {
+        return entries;
+    }
+}
@@ -1,12 +1,12 @@
 package com.myname.cemount.core;
 
+import com.myname.cemount.server.CommitGraph;
 import com.myname.cemount.server.ObjectUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.*;
 import java.util.zip.Deflater;
@@ -17,7 +17,6 @@ public class CommitCommand {
     private static final String REFS_DIR       = "refs";
     private static final String HEADS_DIR      = "heads";
     private static final String HEAD_FILE      = "HEAD";
-    private static final String INDEX_TXT      = "index.txt";
 
     private static final String ECHO_FILE      = "ECHO";
 
@@ -34,7 +33,6 @@ public class CommitCommand {
         Path objects   = cemDir.resolve(OBJECTS_SUBDIR);
         Path refsHeads = cemDir.resolve(REFS_DIR).resolve(HEADS_DIR);
         Path headFile  = cemDir.resolve(HEAD_FILE);
-        Path indexTxt  = cemDir.resolve(INDEX_TXT);
 
         Path echoDir   = cemDir.resolve(ECHO_FILE);
 
@@ -60,19 +58,32 @@ public class CommitCommand {
             return;
         }
 
-        List<Staged> staged;
+        Index index;
         try {
-            if (Files.notExists(indexTxt)) {
-                System.err.println("cem commit: nothing to commit (no staged files)");
-                return;
-            }
-            staged = readIndex(indexTxt);
-            if (staged.isEmpty()) {
+            index = Index.load(cemDir);
+            if (index.size() == 0) {
                 System.err.println("cem commit: nothing to commit (index is empty)");
                 return;
             }
         } catch (IOException e) {
-            System.err.println("cem commit: cannot read index.txt: " + e.getMessage());
+            System.err.println("cem commit: cannot read index: " + e.getMessage());
+            return;
+        }
+
+        ObjectId parent = null;
+        Path refPath = refsHeads.resolve(ObjectUtils.getBranch(cemDir));
+        if(Files.exists(refPath)){
+            parent = ObjectUtils.getRefId(cemDir, ObjectUtils.getBranch(cemDir));
+        }
+        ObjectId tree;
+        try {
+            tree = writeTrees(cemDir, index.entries());
+        } catch (IOException e) {
+            System.err.println("cem commit: cannot write tree objects: " + e.getMessage());
+            return;
+        }
+        if (parent != null && sameTree(index, tree, ObjectUtils.readCommit(cemDir, parent))) {
+            System.err.println("cem commit: nothing to commit, index matches HEAD");
             return;
         }
 
@@ -81,14 +92,11 @@ public class CommitCommand {
         StringBuilder body = new StringBuilder();
         body.append("timestamp: ").append(nowEpoch).append('\n');
         body.append("message:   ").append(commitMessage).append('\n');
-        Path refPath = refsHeads.resolve(ObjectUtils.getBranch(cemDir));
-        if(Files.exists(refPath)){
-            body.append("parent: ").append(Files.readString(refPath)).append('\n');
+        if (parent != null) {
+            body.append("parent: ").append(parent.name()).append('\n');
         }
+        body.append("tree: ").append(tree.name()).append('\n');
         body.append('\n');
-        for (Staged s : staged) {
-            body.append(s.sha).append(' ').append(s.path).append('\n');
-        }
         byte[] bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
 
         String header = "commit " + bodyBytes.length + "\0";
@@ -97,15 +105,13 @@ public class CommitCommand {
         System.arraycopy(hdrBytes, 0, store, 0, hdrBytes.length);
         System.arraycopy(bodyBytes, 0, store, hdrBytes.length, bodyBytes.length);
 
-        String commitSha = sha1Hex(store);
-        String dirName   = commitSha.substring(0, 2);
-        String fileName  = commitSha.substring(2);
-        Path commitDir   = echoDir.resolve(dirName);
-        Path commitFile  = commitDir.resolve(fileName);
+        ObjectId commitSha = ObjectId.hash(store);
+        Path commitFile  = ObjectUtils.loosePath(echoDir, commitSha);
+        Path commitDir   = commitFile.getParent();
 
         //Write it zlib‐compressed under .cemount/objects/xx/yyyy...
         try {
-            if (Files.notExists(commitFile)) {
+            if (!ObjectUtils.hasObject(cemDir, commitSha)) {
                 Files.createDirectories(commitDir);
                 byte[] compressed = zlibCompress(store);
                 Files.write(commitFile, compressed);
@@ -114,6 +120,11 @@ public class CommitCommand {
             System.err.println("cem commit: cannot write commit object: " + e.getMessage());
             return;
         }
+        try {
+            CommitGraph.of(cemDir).add(commitSha);
+        } catch (IOException e) {
+            System.err.println("cem commit: warning: could not update commit-graph: " + e.getMessage());
+        }
 
         String headContents;
         try {
@@ -125,61 +136,72 @@ public class CommitCommand {
         if (headContents.startsWith("ref: ")) {
             Path branchRef = cemDir.resolve(headContents.substring(5).trim());
             try {
-                Files.writeString(branchRef, commitSha + "\n", StandardCharsets.US_ASCII);
+                Files.writeString(branchRef, commitSha.name() + "\n", StandardCharsets.US_ASCII);
             } catch (IOException e) {
                 System.err.println("cem commit: cannot update branch ref: " + e.getMessage());
                 return;
             }
-            System.out.println("[master " + commitSha.substring(0, 7) + "] " + commitMessage);
+            System.out.println("[master " + commitSha.name().substring(0, 7) + "] " + commitMessage);
         } else {
             try {
-                Files.writeString(headFile, commitSha + "\n", StandardCharsets.US_ASCII);
+                Files.writeString(headFile, commitSha.name() + "\n", StandardCharsets.US_ASCII);
             } catch (IOException e) {
                 System.err.println("cem commit: cannot update HEAD: " + e.getMessage());
                 return;
             }
-            System.out.println("[detached HEAD " + commitSha.substring(0, 7) + "] " + commitMessage);
+            System.out.println("[detached HEAD " + commitSha.name().substring(0, 7) + "] " + commitMessage);
         }
+    }
 
-        try {
-            Files.writeString(indexTxt, "", StandardCharsets.UTF_8);
-        } catch (IOException e) {
-            System.err.println("cem commit: warning: could not clear index.txt: " + e.getMessage());
-        }
+    /** One directory while the trees are built: file ids and subdirectories by name. */
+    private static final class Dir {
+        final Map<String, Object> children = new TreeMap<>();
     }
 
-    private static List<Staged> readIndex(Path indexTxt) throws IOException {
-        List<Staged> out = new ArrayList<>();
-        for (String line : Files.readAllLines(indexTxt, StandardCharsets.UTF_8)) {
-            if (line.isBlank()) continue;
-            String[] parts = line.split(" ", 2);
-            if (parts.length < 2) continue;
-            out.add(new Staged(parts[0], parts[1]));
+    /**
+     * Write one tree per directory of the index, deepest first, and return the root's
+     * id. Directories whose content did not change hash to trees that already exist.
+     */
+    private static ObjectId writeTrees(Path cemDir, Collection<Index.Entry> entries) throws IOException {
+        Dir root = new Dir();
+        for (Index.Entry e : entries) {
+            String[] names = e.getPath().split("/");
+            Dir dir = root;
+            for (int i = 0; i < names.length - 1; i++) {
+                Object child = dir.children.get(names[i]);
+                if (!(child instanceof Dir)) {
+                    child = new Dir();
+                    dir.children.put(names[i], child);
+                }
+                dir = (Dir) child;
+            }
+            dir.children.put(names[names.length - 1], e.getId());
         }
-        return out;
+        return writeTree(cemDir, root);
     }
-    private static class Staged {
-        final String sha;
-        final String path;
-        Staged(String sha, String path) {
-            this.sha  = sha;
-            this.path = path;
+
+    private static ObjectId writeTree(Path cemDir, Dir dir) throws IOException {
+        List<Tree.Entry> entries = new ArrayList<>(dir.children.size());
+        for (Map.Entry<String, Object> child : dir.children.entrySet()) {
+            if (child.getValue() instanceof Dir) {
+                entries.add(new Tree.Entry(child.getKey(), writeTree(cemDir, (Dir) child.getValue()), true));
+            } else {
+                entries.add(new Tree.Entry(child.getKey(), (ObjectId) child.getValue(), false));
+            }
         }
+        return ObjectUtils.writeTree(cemDir, entries);
     }
 
-    private static String sha1Hex(byte[] data) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] digest = md.digest(data);
-            StringBuilder sb = new StringBuilder(40);
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    private static boolean sameTree(Index index, ObjectId tree, Commit head) {
+        if (head.getTree() != null) return head.getTree().equals(tree);
+        if (head.getEntries().size() != index.size()) return false;
+        for (Pair pair : head.getEntries()) {
+            Index.Entry e = index.get(pair.getFileName());
+            if (e == null || !e.getId().equals(pair.getSha())) return false;
         }
+        return true;
     }
+
     private static byte[] zlibCompress(byte[] input) throws IOException {
         Deflater def = new Deflater();
         def.setInput(input);
@@ -195,12 +217,4 @@ public class CommitCommand {
             def.end();
         }
     }
-    @SuppressWarnings("unused")
-    private static byte[] hexToBytes(String hex) {
-        byte[] out = new byte[20];
-        for (int i = 0; i < 20; i++) {
-            out[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
-        }
-        return out;
-    }
 }
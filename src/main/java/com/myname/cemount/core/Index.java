@@ -0,0 +1,230 @@
+package com.myname.cemount.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The staging area, .cemount/index. Loaded once, changed in memory and written back
+ * in one atomic rename.
+ *
+ *   "CIND" | version | count | entries sorted by path... | sha1 of everything before
+ *   entry: path length (2) | path (utf-8) | id (20) | size (8) | mtime ns (8) | file key (8)
+ *
+ * The stat fields let `cem add` skip files that did not change. They all come from
+ * the one stat the directory walk already does: the file key is the hash of what
+ * the OS uses to identify the file (device and inode on Unix), 0 where there is
+ * none, so a file replaced by another one is noticed. An entry whose mtime is not older
+ * than the index file itself is "racy": the file may have changed again within the
+ * same clock tick after it was hashed, so it is always rehashed.
+ */
+public final class Index {
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_TXT  = "index.txt";
+    private static final int    MAGIC      = 0x43494e44; // CIND
+    private static final int    VERSION    = 1;
+
+    private final Path file;
+    private final Map<String, Entry> entries = new TreeMap<>();
+    private long fileMtime = Long.MIN_VALUE;
+    private boolean migrated;
+
+    private Index(Path file) {
+        this.file = file;
+    }
+
+    public static final class Entry {
+        private final String path;
+        private final ObjectId id;
+        private final long size;
+        private final long mtime;
+        private final long fileKey;
+
+        public Entry(String path, ObjectId id, long size, long mtime, long fileKey) {
+            this.path = path;
+            this.id = id;
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        /** True if stat data taken from the working file matches this entry. */
+        public boolean matches(Stat stat) {
+            return size == stat.size && mtime == stat.mtime && fileKey == stat.fileKey;
+        }
+    }
+
+    /** The stat fields of a working file that the index keeps. */
+    public static final class Stat {
+        final long size;
+        final long mtime;
+        final long fileKey;
+
+        Stat(long size, long mtime, long fileKey) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+        }
+    }
+
+    /** Read .cemount/index, or the entries of an old index.txt if there is no binary index yet. */
+    public static Index load(Path cemDir) throws IOException {
+        Index index = new Index(cemDir.resolve(INDEX_FILE));
+        Path txt = cemDir.resolve(INDEX_TXT);
+        if (Files.exists(index.file)) {
+            index.read();
+        } else if (Files.exists(txt)) {
+            // no stat data: every migrated entry gets rehashed on the next add
+            for (String line : Files.readAllLines(txt, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length < 2 || !ObjectId.isId(parts[0])) continue;
+                index.put(new Entry(parts[1], ObjectId.fromHex(parts[0]), -1, 0, 0));
+            }
+            index.migrated = true;
+        }
+        return index;
+    }
+
+    public static Stat stat(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return new Stat(attrs.size(), toNanos(attrs.lastModifiedTime()), key == null ? 0 : key.hashCode());
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * The entry for path if the working file's stat data still matches it and the
+     * entry is not racy, else null and the file has to be hashed.
+     */
+    public Entry getUnchanged(String path, Stat stat) {
+        Entry e = entries.get(path);
+        if (e == null || !e.matches(stat) || e.mtime >= fileMtime) return null;
+        return e;
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.path, entry);
+    }
+
+    public Entry remove(String path) {
+        return entries.remove(path);
+    }
+
+    /** Entries sorted by path. */
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Entry create(String path, ObjectId id, Stat stat) {
+        return new Entry(path, id, stat.size, stat.mtime, stat.fileKey);
+    }
+
+    /** Write to a temp file and rename it over .cemount/index, then drop a migrated index.txt. */
+    public void write() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 88);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entries.size());
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (Entry e : entries.values()) {
+            byte[] path = e.path.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(path.length);
+            out.write(path);
+            e.id.copyRawTo(raw, 0);
+            out.write(raw);
+            out.writeLong(e.size);
+            out.writeLong(e.mtime);
+            out.writeLong(e.fileKey);
+        }
+        out.write(sha1(bytes.toByteArray(), bytes.size()));
+        out.flush();
+
+        Path tmp = Files.createTempFile(file.getParent(), "index", ".tmp");
+        try {
+            Files.write(tmp, bytes.toByteArray());
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        fileMtime = toNanos(Files.getLastModifiedTime(file));
+        if (migrated) {
+            Files.deleteIfExists(file.resolveSibling(INDEX_TXT));
+            migrated = false;
+        }
+    }
+
+    private void read() throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        fileMtime = toNanos(Files.getLastModifiedTime(file));
+        if (data.length < 12 + 20) throw new IOException("index file too short: " + file);
+        int end = data.length - 20;
+        if (!Arrays.equals(sha1(data, end), Arrays.copyOfRange(data, end, data.length))) {
+            throw new IOException("index checksum mismatch: " + file);
+        }
+        ByteBuffer in = ByteBuffer.wrap(data, 0, end);
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException("not an index file: " + file);
+        }
+        int count = in.getInt();
+        List<Entry> read = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] path = new byte[in.getShort() & 0xffff];
+                in.get(path);
+                ObjectId id = ObjectId.fromRaw(in, in.position());
+                in.position(in.position() + ObjectId.RAW_LENGTH);
+                read.add(new Entry(new String(path, StandardCharsets.UTF_8), id,
+                        in.getLong(), in.getLong(), in.getLong()));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("index file truncated: " + file);
+        }
+        for (Entry e : read) put(e);
+    }
+
+    private static byte[] sha1(byte[] data, int len) {
+        MessageDigest md = ObjectId.sha1();
+        md.update(data, 0, len);
+        return md.digest();
+    }
+
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,201 @@
+package com.myname.cemount.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A 20 byte SHA-1 object id. Held as five ints rather than a 40 char hex String,
+ * so ids are cheap to keep in large collections and compare word by word.
+ * Ordering is unsigned byte order, which is also the order of the hex names.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    public static final int RAW_LENGTH = 20;
+    public static final int HEX_LENGTH = 40;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) HEX_VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    final int w1, w2, w3, w4, w5;
+
+    ObjectId(int w1, int w2, int w3, int w4, int w5) {
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+        this.w5 = w5;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Parsing                                                            */
+    /*----------------------------------------------------------------------*/
+
+    public static ObjectId fromHex(String hex) {
+        if (hex == null || hex.length() != HEX_LENGTH) {
+            throw new IllegalArgumentException("invalid object id: " + hex);
+        }
+        return new ObjectId(hexWord(hex, 0), hexWord(hex, 8), hexWord(hex, 16), hexWord(hex, 24), hexWord(hex, 32));
+    }
+
+    /** True if s is a 40 digit hex id. */
+    public static boolean isId(String s) {
+        if (s == null || s.length() != HEX_LENGTH) return false;
+        for (int i = 0; i < HEX_LENGTH; i++) {
+            char c = s.charAt(i);
+            if (c >= 128 || HEX_VALUES[c] < 0) return false;
+        }
+        return true;
+    }
+
+    public static ObjectId fromRaw(byte[] raw, int offset) {
+        return new ObjectId(word(raw, offset), word(raw, offset + 4), word(raw, offset + 8),
+                word(raw, offset + 12), word(raw, offset + 16));
+    }
+
+    /** Read an id at an absolute index, without moving the buffer's position. */
+    public static ObjectId fromRaw(ByteBuffer buf, int index) {
+        return new ObjectId(buf.getInt(index), buf.getInt(index + 4), buf.getInt(index + 8),
+                buf.getInt(index + 12), buf.getInt(index + 16));
+    }
+
+    /** SHA-1 of the full object bytes ("type size\0data"). */
+    public static ObjectId hash(byte[] data) {
+        return fromDigest(sha1().digest(data));
+    }
+
+    public static ObjectId fromDigest(byte[] digest) {
+        return fromRaw(digest, 0);
+    }
+
+    public static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 not available", e);
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Output                                                             */
+    /*----------------------------------------------------------------------*/
+
+    public void copyRawTo(byte[] dst, int offset) {
+        putWord(dst, offset, w1);
+        putWord(dst, offset + 4, w2);
+        putWord(dst, offset + 8, w3);
+        putWord(dst, offset + 12, w4);
+        putWord(dst, offset + 16, w5);
+    }
+
+    public byte[] toRaw() {
+        byte[] raw = new byte[RAW_LENGTH];
+        copyRawTo(raw, 0);
+        return raw;
+    }
+
+    /** The 40 char lowercase hex name. */
+    public String name() {
+        char[] out = new char[HEX_LENGTH];
+        hexWord(out, 0, w1);
+        hexWord(out, 8, w2);
+        hexWord(out, 16, w3);
+        hexWord(out, 24, w4);
+        hexWord(out, 32, w5);
+        return new String(out);
+    }
+
+    /** The first byte, used for fanout tables and the xx/ directory of loose objects. */
+    public int firstByte() {
+        return w1 >>> 24;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Comparison                                                         */
+    /*----------------------------------------------------------------------*/
+
+    /** Compare against a raw id stored at an absolute index of a buffer (pack index lookups). */
+    public int compareTo(ByteBuffer buf, int index) {
+        int c = Integer.compareUnsigned(w1, buf.getInt(index));
+        if (c != 0) return c;
+        c = Integer.compareUnsigned(w2, buf.getInt(index + 4));
+        if (c != 0) return c;
+        c = Integer.compareUnsigned(w3, buf.getInt(index + 8));
+        if (c != 0) return c;
+        c = Integer.compareUnsigned(w4, buf.getInt(index + 12));
+        if (c != 0) return c;
+        return Integer.compareUnsigned(w5, buf.getInt(index + 16));
+    }
+
+    @Override
+    public int compareTo(ObjectId o) {
+        int c = Integer.compareUnsigned(w1, o.w1);
+        if (c != 0) return c;
+        c = Integer.compareUnsigned(w2, o.w2);
+        if (c != 0) return c;
+        c = Integer.compareUnsigned(w3, o.w3);
+        if (c != 0) return c;
+        c = Integer.compareUnsigned(w4, o.w4);
+        if (c != 0) return c;
+        return Integer.compareUnsigned(w5, o.w5);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ObjectId)) return false;
+        ObjectId other = (ObjectId) o;
+        return w1 == other.w1 && w2 == other.w2 && w3 == other.w3 && w4 == other.w4 && w5 == other.w5;
+    }
+
+    /** SHA-1 bits are already uniformly distributed, one word is enough. */
+    @Override
+    public int hashCode() {
+        return w2;
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    /*----------------------------------------------------------------------*/
+
+    private static int hexWord(String hex, int at) {
+        int w = 0;
+        for (int i = at; i < at + 8; i++) {
+            char c = hex.charAt(i);
+            int v = c < 128 ? HEX_VALUES[c] : -1;
+            if (v < 0) throw new IllegalArgumentException("invalid object id: " + hex);
+            w = (w << 4) | v;
+        }
+        return w;
+    }
+
+    private static void hexWord(char[] out, int at, int w) {
+        for (int i = 7; i >= 0; i--) {
+            out[at + i] = HEX_DIGITS[w & 0xf];
+            w >>>= 4;
+        }
+    }
+
+    private static int word(byte[] raw, int at) {
+        return ((raw[at] & 0xff) << 24) | ((raw[at + 1] & 0xff) << 16)
+                | ((raw[at + 2] & 0xff) << 8) | (raw[at + 3] & 0xff);
+    }
+
+    private static void putWord(byte[] dst, int at, int w) {
+        dst[at] = (byte) (w >>> 24);
+        dst[at + 1] = (byte) (w >>> 16);
+        dst[at + 2] = (byte) (w >>> 8);
+        dst[at + 3] = (byte) w;
+    }
+}
@@ -0,0 +1,106 @@
+package com.myname.cemount.core;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Open-addressing hash map keyed by object id, with the keys flattened into one
+ * int[] like {@link ObjectIdSet}. Null values are not allowed, an empty value
+ * slot marks a free key slot.
+ */
+public final class ObjectIdMap<V> {
+    private static final int WORDS = 5;
+
+    private int[] words;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public ObjectIdMap() {
+        this(16);
+    }
+
+    public ObjectIdMap(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /** @return the previous value, or null */
+    @SuppressWarnings("unchecked")
+    public V put(ObjectId id, V value) {
+        if (value == null) throw new NullPointerException("null value for " + id);
+        if ((size + 1) * 2 > values.length) grow();
+        int slot = slot(id);
+        V old = (V) values[slot];
+        if (old == null) {
+            int b = slot * WORDS;
+            words[b] = id.w1;
+            words[b + 1] = id.w2;
+            words[b + 2] = id.w3;
+            words[b + 3] = id.w4;
+            words[b + 4] = id.w5;
+            size++;
+        }
+        values[slot] = value;
+        return old;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(ObjectId id) {
+        return (V) values[slot(id)];
+    }
+
+    public boolean containsKey(ObjectId id) {
+        return values[slot(id)] != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<ObjectId, V> action) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) continue;
+            int b = i * WORDS;
+            action.accept(new ObjectId(words[b], words[b + 1], words[b + 2], words[b + 3], words[b + 4]), (V) values[i]);
+        }
+    }
+
+    private int slot(ObjectId id) {
+        int i = id.hashCode() & mask;
+        while (values[i] != null) {
+            int b = i * WORDS;
+            if (words[b] == id.w1 && words[b + 1] == id.w2 && words[b + 2] == id.w3
+                    && words[b + 3] == id.w4 && words[b + 4] == id.w5) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+        int[] oldWords = words;
+        Object[] oldValues = values;
+        allocate(oldValues.length * 2);
+        size = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int b = i * WORDS;
+            put(new ObjectId(oldWords[b], oldWords[b + 1], oldWords[b + 2], oldWords[b + 3], oldWords[b + 4]),
+                    (V) oldValues[i]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        words = new int[capacity * WORDS];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,102 @@
+package com.myname.cemount.core;
+
+import java.util.function.Consumer;
+
+/**
+ * Open-addressing hash set of object ids. Ids are stored flattened into one int[]
+ * (five words per slot), so a set of 100k ids is a single array rather than
+ * 100k ObjectId/String objects plus hash nodes.
+ */
+public final class ObjectIdSet {
+    private static final int WORDS = 5;
+
+    private int[] words;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public ObjectIdSet() {
+        this(16);
+    }
+
+    public ObjectIdSet(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /** @return true if the id was not in the set yet */
+    public boolean add(ObjectId id) {
+        if ((size + 1) * 2 > used.length) grow();
+        int slot = slot(id);
+        if (used[slot]) return false;
+        put(slot, id);
+        size++;
+        return true;
+    }
+
+    public boolean contains(ObjectId id) {
+        return used[slot(id)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void forEach(Consumer<ObjectId> action) {
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) action.accept(at(i));
+        }
+    }
+
+    /** Slot holding id, or the empty slot where it would go. */
+    private int slot(ObjectId id) {
+        int i = id.hashCode() & mask;
+        while (used[i]) {
+            int b = i * WORDS;
+            if (words[b] == id.w1 && words[b + 1] == id.w2 && words[b + 2] == id.w3
+                    && words[b + 3] == id.w4 && words[b + 4] == id.w5) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void put(int slot, ObjectId id) {
+        int b = slot * WORDS;
+        words[b] = id.w1;
+        words[b + 1] = id.w2;
+        words[b + 2] = id.w3;
+        words[b + 3] = id.w4;
+        words[b + 4] = id.w5;
+        used[slot] = true;
+    }
+
+    private ObjectId at(int slot) {
+        int b = slot * WORDS;
+        return new ObjectId(words[b], words[b + 1], words[b + 2], words[b + 3], words[b + 4]);
+    }
+
+    private void grow() {
+        int[] oldWords = words;
+        boolean[] oldUsed = used;
+        allocate(oldUsed.length * 2);
+        for (int i = 0; i < oldUsed.length; i++) {
+            if (!oldUsed[i]) continue;
+            int b = i * WORDS;
+            ObjectId id = new ObjectId(oldWords[b], oldWords[b + 1], oldWords[b + 2], oldWords[b + 3], oldWords[b + 4]);
+            put(slot(id), id);
+        }
+    }
+
+    private void allocate(int capacity) {
+        words = new int[capacity * WORDS];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -1,15 +1,15 @@
 package com.myname.cemount.core;
 
 public class Pair {
-    private final String sha;
+    private final ObjectId sha;
     private final String fileName;
 
-    public Pair(String sha, String fileName) {
+    public Pair(ObjectId sha, String fileName) {
         this.sha = sha;
         this.fileName = fileName;
     }
 
-    public String getSha(){
+    public ObjectId getSha(){
         return this.sha;
     }
 
@@ -17,4 +17,4 @@ public class Pair {
         return this.fileName;
     }
 
-}
+}
\ No newline at end of file
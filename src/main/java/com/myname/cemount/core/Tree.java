@@ -0,0 +1,92 @@
+package com.myname.cemount.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A tree object: the files and subdirectories of one directory, sorted by name.
+ * It is stored under objects/ like a blob, as "tree &lt;size&gt;\0" and the body
+ *
+ *   blob &lt;sha&gt; &lt;name&gt;
+ *   tree &lt;sha&gt; &lt;name&gt;
+ *   ...
+ *
+ * A directory that did not change keeps its id, so commits share it.
+ */
+public final class Tree {
+    public static final String TYPE = "tree";
+    private static final String BLOB = "blob";
+
+    private final ObjectId id;
+    private final List<Entry> entries;
+
+    public static final class Entry {
+        private final String name;
+        private final ObjectId id;
+        private final boolean tree;
+
+        public Entry(String name, ObjectId id, boolean tree) {
+            this.name = name;
+            this.id = id;
+            this.tree = tree;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        /** True for a subdirectory, false for a file. */
+        public boolean isTree() {
+            return tree;
+        }
+    }
+
+    public Tree(ObjectId id, List<Entry> entries) {
+        this.id = id;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * @param body tree text without the "tree &lt;size&gt;\0" header
+     */
+    public static Tree parse(ObjectId id, String body) {
+        List<Entry> entries = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            int sp = line.indexOf(' ');
+            if (sp < 0 || line.length() < sp + 1 + ObjectId.HEX_LENGTH + 1) continue;
+            String sha = line.substring(sp + 1, sp + 1 + ObjectId.HEX_LENGTH);
+            if (!ObjectId.isId(sha)) continue;
+            String name = line.substring(sp + 2 + ObjectId.HEX_LENGTH);
+            entries.add(new Entry(name, ObjectId.fromHex(sha), line.startsWith(TYPE + " ")));
+        }
+        return new Tree(id, entries);
+    }
+
+    /** The full "tree &lt;size&gt;\0..." bytes for entries already sorted by name. */
+    public static byte[] format(List<Entry> entries) {
+        StringBuilder body = new StringBuilder(entries.size() * 64);
+        for (Entry e : entries) {
+            body.append(e.tree ? TYPE : BLOB).append(' ').append(e.id.name()).append(' ').append(e.name).append('\n');
+        }
+        byte[] bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] hdr = (TYPE + " " + bodyBytes.length + "\0").getBytes(StandardCharsets.UTF_8);
+        byte[] full = new byte[hdr.length + bodyBytes.length];
+        System.arraycopy(hdr, 0, full, 0, hdr.length);
+        System.arraycopy(bodyBytes, 0, full, hdr.length, bodyBytes.length);
+        return full;
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+}
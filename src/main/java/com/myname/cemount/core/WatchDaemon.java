@@ -0,0 +1,440 @@
+package com.myname.cemount.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * `cem watch`: keeps a WatchService on every directory of a working tree and
+ * remembers which paths changed, so `cem status` and `cem add` only look at those
+ * instead of stat-ing the whole tree. On start, and after the OS dropped events,
+ * it walks the tree once and marks what does not match the index.
+ *
+ * Clients talk to it over a Unix domain socket, .cemount/watch.sock, one request
+ * per connection:
+ *
+ *   DIRTY        "GEN &lt;n&gt;", the changed paths one per line, an empty line;
+ *                or "SCAN" if it cannot tell, and the client walks the tree
+ *   FORGET &lt;n&gt;   the index now covers every path reported up to generation n
+ *   STOP
+ *
+ * Before answering DIRTY it creates a cookie file in the working tree and waits
+ * for its event, so every change made before the request has been seen.
+ *
+ * Unix domain sockets came with Java 16. They are reached by reflection so the
+ * rest still builds for Java 11; without them, or without a running daemon, the
+ * commands walk the tree with the index's stat data as before.
+ */
+public final class WatchDaemon {
+    private static final String CEM_DIR       = ".cemount";
+    private static final String SOCKET        = "watch.sock";
+    private static final String COOKIE_PREFIX = ".cem-cookie-";
+    private static final long   COOKIE_WAIT   = 2000;
+
+    /** The answer to DIRTY: paths that may differ from the index. */
+    public static final class Dirty {
+        private final long generation;
+        private final List<String> paths;
+        private final Set<String> pathSet;
+
+        Dirty(long generation, List<String> paths) {
+            this.generation = generation;
+            this.paths = paths;
+            this.pathSet = new HashSet<>(paths);
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        /** Files or directories, relative to the working tree, with '/' separators. */
+        public List<String> getPaths() {
+            return paths;
+        }
+
+        /** True if the path or one of its directories changed. */
+        public boolean covers(String path) {
+            String p = path;
+            while (true) {
+                if (pathSet.contains(p)) return true;
+                int slash = p.lastIndexOf('/');
+                if (slash < 0) return false;
+                p = p.substring(0, slash);
+            }
+        }
+    }
+
+    private final Path workDir;
+    private final Path cemDir;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Map<String, Long> dirty = new HashMap<>();
+    private final Set<String> cookiesSeen = new HashSet<>();
+    private long generation;
+    private long cookies;
+    private volatile boolean running = true;
+
+    public WatchDaemon(Path workDir, Path cemDir) throws IOException {
+        this.workDir = workDir;
+        this.cemDir = cemDir;
+        this.watcher = workDir.getFileSystem().newWatchService();
+    }
+
+    /** True for the daemon's cookie files, which the tree walks of add and status skip. */
+    public static boolean isCookie(Path file) {
+        return file.getFileName().toString().startsWith(COOKIE_PREFIX);
+    }
+
+    /** True if this JVM has Unix domain sockets. */
+    public static boolean isSupported() {
+        return unix() != null;
+    }
+
+    /** Watch and answer requests until STOP. */
+    public void run() throws IOException {
+        Path socketPath = cemDir.resolve(SOCKET);
+        try (SocketChannel other = connect(cemDir)) {
+            if (other != null) {
+                watcher.close();
+                throw new IOException("already watching " + workDir);
+            }
+        }
+        // left behind by a daemon that was killed
+        Files.deleteIfExists(socketPath);
+        try (ServerSocketChannel server = open(ServerSocketChannel.class)) {
+            server.bind(unixAddress(socketPath));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try { Files.deleteIfExists(socketPath); } catch (IOException ignored) {}
+            }, "cem-watch-cleanup"));
+            scan(workDir, true);
+            Thread events = new Thread(this::watch, "cem-watch-events");
+            events.setDaemon(true);
+            events.start();
+            System.out.println("watching " + workDir + " (" + dirs.size() + " directories)");
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    serve(client);
+                } catch (IOException e) {
+                    System.err.println("cem watch: " + e.getMessage());
+                }
+            }
+        } finally {
+            running = false;
+            try {
+                watcher.close();
+            } finally {
+                Files.deleteIfExists(socketPath);
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Client side                                                        */
+    /*----------------------------------------------------------------------*/
+
+    /**
+     * The paths a running daemon saw change since the index last covered them,
+     * or null if there is no daemon or it cannot tell: then walk the whole tree.
+     */
+    public static Dirty dirty(Path cemDir) {
+        List<String> reply = request(cemDir, "DIRTY");
+        if (reply == null || reply.isEmpty() || !reply.get(0).startsWith("GEN ")) return null;
+        // the empty line, so a daemon that died halfway is not taken for a short list
+        if (reply.size() < 2 || !reply.get(reply.size() - 1).isEmpty()) return null;
+        try {
+            long generation = Long.parseLong(reply.get(0).substring(4).trim());
+            return new Dirty(generation, new ArrayList<>(reply.subList(1, reply.size() - 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Tell the daemon the index now matches every path of that answer. */
+    public static void forget(Path cemDir, Dirty answered) {
+        request(cemDir, "FORGET " + answered.getGeneration());
+    }
+
+    /** @return false if no daemon was running */
+    public static boolean stop(Path cemDir) {
+        return request(cemDir, "STOP") != null;
+    }
+
+    private static List<String> request(Path cemDir, String line) {
+        try (SocketChannel channel = connect(cemDir)) {
+            if (channel == null) return null;
+            Writer out = new OutputStreamWriter(Channels.newOutputStream(channel), UTF_8);
+            out.write(line + "\n");
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), UTF_8));
+            List<String> reply = new ArrayList<>();
+            String l;
+            while ((l = in.readLine()) != null) reply.add(l);
+            return reply;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static SocketChannel connect(Path cemDir) {
+        Path socket = cemDir.resolve(SOCKET);
+        if (!isSupported() || !Files.exists(socket)) return null;
+        SocketChannel channel = null;
+        try {
+            channel = open(SocketChannel.class);
+            channel.connect(unixAddress(socket));
+            return channel;
+        } catch (IOException e) {
+            if (channel != null) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+            return null;
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Daemon side                                                        */
+    /*----------------------------------------------------------------------*/
+
+    private void serve(SocketChannel client) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), UTF_8));
+        Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(client), UTF_8));
+        String line = in.readLine();
+        if (line == null) return;
+        String[] parts = line.trim().split(" ");
+        switch (parts[0]) {
+            case "DIRTY": {
+                if (!sync()) {
+                    out.write("SCAN\n");
+                    break;
+                }
+                long gen;
+                List<String> paths;
+                synchronized (this) {
+                    gen = generation;
+                    paths = new ArrayList<>(dirty.keySet());
+                }
+                if (paths.stream().anyMatch(p -> p.indexOf('\n') >= 0)) {
+                    out.write("SCAN\n");
+                    break;
+                }
+                out.write("GEN " + gen + "\n");
+                for (String p : paths) out.write(p + "\n");
+                out.write("\n");
+                break;
+            }
+            case "FORGET": {
+                long upTo;
+                try {
+                    upTo = parts.length == 2 ? Long.parseLong(parts[1]) : -1;
+                } catch (NumberFormatException e) {
+                    upTo = -1;
+                }
+                long forgotten = upTo;
+                synchronized (this) {
+                    dirty.values().removeIf(g -> g <= forgotten);
+                }
+                out.write("OK\n");
+                break;
+            }
+            case "STOP":
+                running = false;
+                out.write("OK\n");
+                break;
+            default:
+                out.write("ERROR unknown request\n");
+        }
+        out.flush();
+    }
+
+    /** On the event thread: mark what changed, watch new directories. */
+    private void watch() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = dirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost: compare everything with the index again
+                    rescan(workDir, true);
+                    continue;
+                }
+                if (dir == null) continue;
+                Path path = dir.resolve((Path) event.context());
+                String name = path.getFileName().toString();
+                if (name.startsWith(COOKIE_PREFIX)) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) cookieSeen(name);
+                    continue;
+                }
+                if (path.startsWith(cemDir)) continue;
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    // what changes inside a directory is reported by its own watch
+                    if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE) continue;
+                    // files may have been created before the watch was
+                    rescan(path, false);
+                }
+                markDirty(rel(path));
+            }
+            if (!key.reset()) dirs.remove(key);
+        }
+    }
+
+    private void rescan(Path start, boolean full) {
+        try {
+            scan(start, full);
+        } catch (IOException e) {
+            System.err.println("cem watch: cannot watch " + start + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Watch every directory under start and mark the files whose stat data does not
+     * match the index; with full, also the index entries whose file is gone.
+     */
+    private void scan(Path start, boolean full) throws IOException {
+        Index index = Index.load(cemDir);
+        Set<String> seen = new HashSet<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                if (d.equals(cemDir)) return FileVisitResult.SKIP_SUBTREE;
+                dirs.put(d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isSymbolicLink()) {
+                    if (!Files.isRegularFile(f)) return FileVisitResult.CONTINUE;
+                    attrs = Files.readAttributes(f, BasicFileAttributes.class);
+                }
+                String rel = rel(f);
+                seen.add(rel);
+                if (index.getUnchanged(rel, Index.stat(attrs)) == null) markDirty(rel);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException e) {
+                markDirty(rel(f));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (full) {
+            for (Index.Entry e : index.entries()) {
+                if (!seen.contains(e.getPath())) markDirty(e.getPath());
+            }
+        }
+    }
+
+    /** Make every change made before now visible: create a cookie file and wait for its event. */
+    private boolean sync() {
+        String name = COOKIE_PREFIX + ProcessHandle.current().pid() + "-" + (++cookies);
+        Path cookie = workDir.resolve(name);
+        try {
+            Files.createFile(cookie);
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            long deadline = System.currentTimeMillis() + COOKIE_WAIT;
+            synchronized (this) {
+                while (!cookiesSeen.remove(name)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) return false;
+                    wait(left);
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            try { Files.deleteIfExists(cookie); } catch (IOException ignored) {}
+        }
+    }
+
+    private synchronized void cookieSeen(String name) {
+        cookiesSeen.add(name);
+        notifyAll();
+    }
+
+    private synchronized void markDirty(String rel) {
+        if (!rel.isEmpty() && !rel.equals(CEM_DIR)) dirty.put(rel, ++generation);
+    }
+
+    private String rel(Path path) {
+        return workDir.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Unix domain sockets by reflection                                  */
+    /*----------------------------------------------------------------------*/
+
+    private static ProtocolFamily unix() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static SocketAddress unixAddress(Path path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or newer", e);
+        }
+    }
+
+    /** SocketChannel.open(UNIX) or ServerSocketChannel.open(UNIX). */
+    private static <T> T open(Class<T> type) throws IOException {
+        ProtocolFamily unix = unix();
+        if (unix == null) throw new IOException("Unix domain sockets need Java 16 or newer");
+        try {
+            return type.cast(type.getMethod("open", ProtocolFamily.class).invoke(null, unix));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("cannot open a Unix domain socket", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or newer", e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.myname.cemount.server;
+
+/**
+ * Content-defined chunking (FastCDC). A gear hash rolls over the data and a chunk
+ * ends where the hash hits a mask, so an insert or delete only moves the cut points
+ * next to it and every other chunk keeps its id.
+ *
+ * Chunks are MIN_SIZE..MAX_SIZE bytes and average about AVG_SIZE. Normalized
+ * chunking uses a harder mask before AVG_SIZE and an easier one after it, which
+ * keeps the sizes close to the average.
+ */
+public class Chunker {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int AVG_SIZE = 64 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    // AVG_SIZE is 2^16: 18 mask bits before it, 14 after, taken from the top of the
+    // hash since those depend on the whole 64 byte window
+    private static final long MASK_HARD = -1L << (64 - 18);
+    private static final long MASK_EASY = -1L << (64 - 14);
+
+    /** Fixed pseudo random table (splitmix64), the cut points must never change. */
+    private static final long[] GEAR = new long[256];
+    static {
+        long seed = 0x43454d6f756e74L;
+        for (int i = 0; i < GEAR.length; i++) {
+            long z = (seed += 0x9e3779b97f4a7c15L);
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /**
+     * Length of the chunk starting at off. len is what is available from off; when
+     * it is less than MAX_SIZE the caller must be at the end of the data.
+     */
+    public static int cut(byte[] buf, int off, int len) {
+        if (len <= MIN_SIZE) return len;
+        int end = Math.min(len, MAX_SIZE);
+        int normal = Math.min(end, AVG_SIZE);
+        long fp = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            fp = (fp << 1) + GEAR[buf[off + i] & 0xff];
+            if ((fp & MASK_HARD) == 0) return i;
+        }
+        for (; i < end; i++) {
+            fp = (fp << 1) + GEAR[buf[off + i] & 0xff];
+            if ((fp & MASK_EASY) == 0) return i;
+        }
+        return end;
+    }
+}
@@ -1,215 +1,437 @@
 package com.myname.cemount.server;
 
-import com.myname.cemount.core.Pair;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.ObjectIdSet;
 
 import java.io.*;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.Predicate;
 
-import static com.myname.cemount.server.ObjectUtils.readLine;
-import static java.nio.charset.StandardCharsets.UTF_8;
 
-public class ClientHandler implements Runnable {
-    private final Socket socket;
+public class ClientHandler implements SelectorServer.Handler {
     private final RepositoryManager repoManager;
+    private final DiskSlots disk;
     private final ExecutorService executor = Executors.newCachedThreadPool();
 
     private static final String CEM_DIR    = ".cemount";
     private static final String REFS_DIR_HEAD       = "refs/heads";
     private static final String OBJECTS    = "objects";
     private static final String ECHO_DIR      = "ECHO";
+    private static final int    MAX_HAVE      = 64 * 1024;
 
 
-    public ClientHandler(Socket socket, RepositoryManager repoManager) {
-        this.socket = socket;
+    /**
+     * @param diskLimit how many threads may read or write objects at once; with
+     *                  virtual threads this is the only cap on disk work. Slots are
+     *                  held around object reads and writes, not whole commands
+     */
+    public ClientHandler(RepositoryManager repoManager, int diskLimit) {
         this.repoManager = repoManager;
+        this.disk = new DiskSlots(diskLimit);
     }
 
     @Override
-    public void run() {
+    public void accepted(Socket socket) {
+        System.out.println("Client connected: " + socket.getInetAddress());
+    }
+
+    @Override
+    public boolean handle(Transport transport, String cmdLine) throws IOException {
+        String[] parts = cmdLine.split(" ", 3);
+        if (parts.length < 3) {
+            transport.writeText("ERROR Unknown command");
+            transport.flush();
+            return true;
+        }
+        return handle(transport, parts);
+    }
+
+    private boolean handle(Transport transport, String[] parts) throws IOException {
+        String cmd = parts[0];
+        String repoName = parts[1];
+        String branch = parts[2];
+        // XXXX <repo-name> <branch>
+        Repository repo = repoManager.openOrCreate(repoName);
+        switch (cmd) {
+            case "INIT":
+                handleInit(parts[1], parts[2], transport);
+                return true;
+            case "CLONE":
+                handleClone(parts[1], parts[2], transport);
+                return true;
+            case "PUSH":
+                handlePush(repo, branch, transport);
+                return true;
+            case "FETCH":
+                handleFetch(transport, repo, branch);
+                return true;
+            case "PULL":
+                handelPull(transport, repo, branch);
+                return true;
+            default:
+                transport.writeText("ERROR Unknown command");
+                transport.flush();
+                return true;
+        }
+    }
+
+    private void handelPull(Transport transport, Repository repo, String branch) throws IOException{
+        Path bareRepo = repo.getCemDir();
+        if (transport.version() >= 2) {
+            sendWanted(transport, repo);
+            return;
+        }
+        // v1: one round trip per object
+        ObjectId sha;
+        while((sha = transport.readIdOrEnd()) != null){
+            // the client may not have a delta's base, so always send blobs in full
+            try (StoredObject stored = open(bareRepo, sha, base -> false)) {
+                transport.writeData(stored);
+            }
+            transport.flush();
+        }
+    }
+
+    /**
+     * v2 pull: the client sends the commits it wants and the tips it has, one id
+     * list each. The answer is every object those commits need that the client
+     * does not have, as one stream of id + data ending with END.
+     */
+    private void sendWanted(Transport transport, Repository repo) throws IOException {
+        Path bareRepo = repo.getCemDir();
+        List<ObjectId> wants = readIds(transport);
+        List<ObjectId> haves = readIds(transport);
+        CommitGraph graph = repo.graph();
+        List<ObjectId> tips = new ArrayList<>();
+        for (ObjectId have : haves) {
+            if (graph.contains(have)) tips.add(have);
+        }
+        List<ObjectId> commits = new ArrayList<>();
+        for (ObjectId want : wants) {
+            // any stored id would do for hasObject, and a blob must never reach the graph
+            if (!ObjectUtils.isCommit(bareRepo, want)) continue;
+            graph.add(want);
+            if (!hasCommit(graph, want, tips)) commits.add(want);
+        }
+        // parents before children, so each diff is against something the client will have
+        commits.sort(Comparator.comparingInt(graph::getGeneration));
+
+        ObjectIdSet done = new ObjectIdSet();
+        ObjectWalk walk = new ObjectWalk(bareRepo, true);
+        for (ObjectId commit : commits) {
+            sendObjects(transport, bareRepo, walk, commit, parentKnown(bareRepo, graph, commit, done, tips));
+            done.add(commit);
+        }
+        transport.writeEnd();
+        transport.flush();
+    }
+
+    /**
+     * Stream commits, oldest first, the way a v2 fetch or clone receives them: each
+     * commit, then the objects it adds over its parent, then END. Objects go out as
+     * the walk finds them, so nothing is buffered whatever the size of the history.
+     */
+    private void sendPack(Transport transport, Path bareRepo, CommitGraph graph,
+                                 List<ObjectId> commits, List<ObjectId> tips) throws IOException {
+        ObjectIdSet done = new ObjectIdSet();
+        ObjectWalk walk = new ObjectWalk(bareRepo, true);
+        for (ObjectId commit : commits) {
+            ByteBuffer stored;
+            disk.acquire();
+            try {
+                stored = ObjectUtils.openCommit(bareRepo, commit);
+            } finally {
+                disk.release();
+            }
+            transport.writeId(commit);
+            transport.writeData(stored);
+            sendObjects(transport, bareRepo, walk, commit, parentKnown(bareRepo, graph, commit, done, tips));
+            transport.writeEnd();
+            done.add(commit);
+        }
+    }
+
+    /**
+     * Send what the walk lists for one commit, each object's stored bytes exactly as
+     * they are on disk or in a pack; large ones go from the file to the socket with
+     * transferTo. Only a delta whose base the client cannot have is expanded: its
+     * base must be the parent's object at the same path or sent earlier.
+     */
+    private void sendObjects(Transport transport, Path bareRepo, ObjectWalk walk,
+                             ObjectId commit, boolean parentKnown) throws IOException {
+        walk.walk(commit, parentKnown, obj -> {
+            Predicate<ObjectId> baseKnown = base -> base.equals(obj.getParentId()) || walk.isListed(base);
+            try (StoredObject stored = open(bareRepo, obj.getId(), baseKnown)) {
+                transport.writeId(obj.getId());
+                transport.writeData(stored);
+            }
+        });
+    }
+
+    /**
+     * Open an object to send, in a disk slot. A delta whose base the client does not
+     * know is expanded here, so the slot also covers reading the chain. A large
+     * object stays a file range: its bytes are read as they go to the socket, after
+     * the slot is given back.
+     */
+    private StoredObject open(Path bareRepo, ObjectId id, Predicate<ObjectId> baseKnown) throws IOException {
+        disk.acquire();
         try {
-            InputStream rawIn = socket.getInputStream();
-            OutputStream        binOut = socket.getOutputStream();
-            BufferedInputStream bin = new BufferedInputStream(rawIn);
-            BufferedReader       in  = new BufferedReader( new InputStreamReader(bin, StandardCharsets.UTF_8));
-            BufferedWriter       out = new BufferedWriter( new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-
-
-            while (true) {
-                String cmdLine = readLine(bin);
-                if (cmdLine == null) break;
-                String[] parts = cmdLine.split(" ", 3);
-                String cmd = parts[0];
-                String repoName = parts[1];
-                String branch = parts[2];
-                // XXXX <repo-name> <branch>
-                Path bareRepo = repoManager.getOrCreate(repoName);
-                switch (cmd) {
-                    case "INIT":
-                        handleInit(parts[1], parts[2], out);
-                        break;
-                    case "CLONE":
-                        handleClone(parts[1], parts[2], out);
-                        break;
-                    case "PUSH":
-                        handlePush(bareRepo, branch, out, bin);
-                        return;
-                    case "FETCH":
-                        handleFetch(in, out ,binOut, bareRepo, branch);
-                        break;
-                    case "PULL":
-                        handelPull(in, out, binOut, bareRepo, branch);
-                        return;
-                    default:
-                        out.write("ERROR Unknown command\n");
-                        out.flush();
-                }
+            StoredObject stored = ObjectUtils.openStoredObject(bareRepo, id);
+            try {
+                ObjectId base = ObjectUtils.deltaBase(stored);
+                if (base == null || baseKnown.test(base)) return stored;
+            } catch (IOException e) {
+                stored.close();
+                throw e;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            stored.close();
+            return new StoredObject(ObjectUtils.openFullObject(bareRepo, id));
         } finally {
-            try { socket.close(); } catch (IOException ignored) {}
+            disk.release();
+        }
+    }
+
+    private static boolean parentKnown(Path bareRepo, CommitGraph graph, ObjectId commit,
+                                       ObjectIdSet done, List<ObjectId> tips) throws IOException {
+        ObjectId parent = ObjectUtils.readCommit(bareRepo, commit).getParent();
+        return parent != null && (done.contains(parent) || hasCommit(graph, parent, tips));
+    }
+
+    /** True if the client has commit, because it is an ancestor of one of its tips. */
+    private static boolean hasCommit(CommitGraph graph, ObjectId commit, List<ObjectId> tips) {
+        if (!graph.contains(commit)) return false;
+        for (ObjectId tip : tips) {
+            if (graph.isAncestor(commit, tip)) return true;
         }
+        return false;
     }
 
-    private static void handelPull(BufferedReader textIn, BufferedWriter textOut, OutputStream binOut, Path bareRepo, String branch) throws IOException{
-        while(true){
-            String sha = textIn.readLine();
-            if(sha.startsWith("OK")) break;
-            byte[] raw = ObjectUtils.loadObject(bareRepo,sha);
-            binOut.write((raw.length + "\n").getBytes(UTF_8));
-            binOut.write(raw);
-            binOut.flush();
+    private static List<ObjectId> readIds(Transport transport) throws IOException {
+        List<ObjectId> ids = new ArrayList<>();
+        ObjectId id;
+        while ((id = transport.readIdOrEnd()) != null) {
+            ids.add(id);
         }
+        return ids;
     }
 
-    private static void handleFetch(BufferedReader ctrlIn, BufferedWriter ctrlOut,OutputStream binOut, Path bareRepo, String branch) throws IOException {
+    private void handleFetch(Transport transport, Repository repo, String branch) throws IOException {
+        Path bareRepo = repo.getCemDir();
         String remoteSha = ObjectUtils.getRef(bareRepo, branch);
 
-        ctrlOut.write(remoteSha + "\n");
-        ctrlOut.flush();
+        transport.writeText(remoteSha);
+        transport.flush();
 
-        String haveSha = ctrlIn.readLine().trim();
+        String haveLine = transport.readText();
+        if (haveLine == null) return;
+        String haveSha = haveLine.trim();
 
         if(haveSha.equals(remoteSha)){
             System.out.println("no update needed");
             return;
         }
-        List<String> missing = new ArrayList<>();
-        String parent = remoteSha;
-        missing.add(parent);
-        while (true){
-            parent = ObjectUtils.getParent(bareRepo,parent);
-            if(parent.equals(haveSha)) break;
-            if(parent.equals("origin")) break;
-            missing.add(parent);
-        }
+        ObjectId have = ObjectId.isId(haveSha) ? ObjectId.fromHex(haveSha) : null;
+        ObjectId tip = ObjectId.fromHex(remoteSha.trim());
+        CommitGraph graph = repo.graph();
+        graph.add(tip);
+        List<ObjectId> missing = new ArrayList<>(graph.commitsBetween(tip, have));
 
-        ctrlOut.write(missing.size() + "\n");
-        ctrlOut.flush();
-
-        for(int i = 0; i < missing.size(); i++){
-            ctrlOut.write(missing.get(i) + "\n");
-            ctrlOut.flush();
-            byte[] raw = ObjectUtils.loadCommit(bareRepo,missing.get(i));
-            ctrlOut.write(raw.length + "\n");
-            ctrlOut.flush();
-            binOut.write(raw);
-            binOut.flush();
+        transport.writeText(String.valueOf(missing.size()));
+        if (transport.version() >= 2) {
+            // the commits and everything they need, as one streamed pack
+            List<ObjectId> tips = have != null && graph.contains(have)
+                    ? Collections.singletonList(have) : Collections.emptyList();
+            sendPack(transport, bareRepo, graph, missing, tips);
+        } else {
+            // newest first, like the old parent walk
+            Collections.reverse(missing);
+            for (ObjectId commit : missing) {
+                transport.writeId(commit);
+                transport.writeData(ObjectUtils.openCommit(bareRepo, commit));
+            }
         }
+        transport.flush();
     }
 
-    private void handlePush(Path bareRepo,
+    private void handlePush(Repository repo,
                             String branch,
-                            BufferedWriter out,
-                            BufferedInputStream bin) throws IOException {
+                            Transport transport) throws IOException {
+        Path bareRepo = repo.getCemDir();
 
-        String clientSha = readLine(bin).trim();
+        String clientSha = transport.readText().trim();
         String refSha = ObjectUtils.getRef(bareRepo,branch).trim();
         if(clientSha.equals(refSha)){
-            out.write("OK \n");
-            out.flush();
+            transport.writeText("OK ");
+            transport.flush();
             return;
         }else {
-            out.write(  refSha + "\n");
-            out.flush();
+            transport.writeText(refSha);
+            transport.flush();
         }
 
-        String line = readLine(bin);
+        String line = transport.readText();
+        // a v2 client first asks which of its objects are here, in batches
+        while (line != null && line.startsWith("HAVE ")) {
+            answerHave(transport, bareRepo, Integer.parseInt(line.substring(5).trim()));
+            line = transport.readText();
+        }
 
         if (line != null && line.startsWith("COMMITS ")) {
             int count = Integer.parseInt(line.split(" ")[1]);
-            for (int i = 0; i < count; i++) {
-                //String sha = in.readLine().trim();
-                String sha = readLine(bin).trim();
-                Path newCommitPath = bareRepo.resolve(ECHO_DIR).resolve(sha.substring(0,2)).resolve(sha.substring(2));
-                Path parentDir = newCommitPath.getParent();
-                if(!Files.exists(parentDir)){
-                    Files.createDirectories(parentDir);
-                }
-                Files.deleteIfExists(newCommitPath);
-                Files.createFile(newCommitPath);
-                //int len = Integer.parseInt(in.readLine().trim());
-                int len = Integer.parseInt(readLine(bin).trim());
-                byte[] raw = bin.readNBytes(len);
-                Files.write(newCommitPath,raw, StandardOpenOption.WRITE);
-                // fix the obj for the files
-                System.out.println(bareRepo);
-                List<Pair> addObj = ObjectUtils.getShaFromCommit(bareRepo, sha);
-                for (int y  = 0; y < addObj.size();y++){
-                    String currentSha = readLine(bin).trim();
-                    Path objPath = bareRepo.resolve(OBJECTS).resolve(currentSha.substring(0,2)).resolve(currentSha.substring(2));
-                    if(!Files.exists(objPath.getParent())){
-                        Files.createDirectories(objPath.getParent());
+            // this thread only reads the socket, the writer puts objects on disk meanwhile
+            try (ObjectWriter writer = new ObjectWriter(bareRepo, "cem-push-writer " + bareRepo.getParent().getFileName(), disk)) {
+                for (int i = 0; i < count; i++) {
+                    ObjectId sha = transport.readId();
+                    receive(transport, writer, sha, ObjectUtils.loosePath(bareRepo.resolve(ECHO_DIR), sha));
+                    // the trees and blobs this commit adds on top of its parent
+                    String objects = transport.readText();
+                    if (objects == null || !objects.startsWith("OBJECTS ")) {
+                        throw new IOException("Expected OBJECTS, got: " + objects);
+                    }
+                    int objCount = Integer.parseInt(objects.substring(8).trim());
+                    for (int y  = 0; y < objCount; y++){
+                        ObjectId currentSha = transport.readId();
+                        byte[] stored = receive(transport, writer, currentSha, ObjectUtils.loosePath(bareRepo.resolve(OBJECTS), currentSha));
+                        List<ObjectId> chunks = stored != null
+                                ? ObjectUtils.chunks(ByteBuffer.wrap(stored))
+                                : ObjectUtils.chunks(bareRepo, currentSha);
+                        if (chunks != null) {
+                            receiveChunks(bareRepo, chunks, transport, writer);
+                        }
                     }
-                    Files.deleteIfExists(objPath);
-                    Files.createFile(objPath);
-                    int size = Integer.parseInt(readLine(bin).trim());
-                    byte[] rawObj = bin.readNBytes(size);
-                    Files.write(objPath,rawObj,StandardOpenOption.WRITE);
                 }
+                // the ref must not move before every object is safely on disk
+                writer.finish();
             }
+            line = transport.readText();
         }
 
-        String update = (readLine(bin).trim());
+        // nothing to send: a v2 client says DONE and may go on, a v1 client hangs up
+        if (line == null || line.trim().equals("DONE")) return;
+        String update = line.trim();
         if (!update.startsWith("UPDATE_REF ")) {
             throw new IOException("Expected UPDATE_REF, got: " + update);
         }
         String[] up = update.split(" ", 3);
-        Files.writeString(bareRepo.resolve("refs/heads").resolve(up[1]),
-                up[2] + "\n",
-                StandardCharsets.UTF_8);
+        if (up.length < 3 || !up[1].equals(branch) || !ObjectId.isId(up[2].trim())) {
+            throw new IOException("Bad UPDATE_REF for " + branch + ": " + update);
+        }
+        ObjectId newTip = ObjectId.fromHex(up[2].trim());
+        if (!ObjectUtils.isCommit(bareRepo, newTip)) {
+            transport.writeText("ERROR " + newTip.name() + " is not a commit");
+            transport.flush();
+            return;
+        }
+        try {
+            repo.graph().add(newTip);
+        } catch (IOException e) {
+            System.err.println("commit-graph not updated for " + bareRepo + ": " + e.getMessage());
+        }
+        // only from the tip this push started on: a concurrent push that got there
+        // first must not be overwritten
+        if (!RefUpdate.compareAndSwap(bareRepo, branch, refSha, newTip)) {
+            transport.writeText("ERROR " + branch + " moved during the push, fetch and push again");
+            transport.flush();
+            return;
+        }
+
+        transport.writeText("OK PUSH " + branch);
+        transport.flush();
+    }
+
 
-        out.write("OK PUSH " + branch + "\n");
-        out.flush();
+
+    /**
+     * Answer "HAVE n" and the n ids that follow with one data message: a bitset,
+     * little-endian as {@link BitSet#toByteArray}, with bit i set if ids[i] is stored.
+     */
+    private static void answerHave(Transport transport, Path bareRepo, int n) throws IOException {
+        if (n < 0 || n > MAX_HAVE) throw new IOException("bad HAVE count " + n);
+        BitSet present = new BitSet(n);
+        for (int i = 0; i < n; i++) {
+            if (ObjectUtils.hasObject(bareRepo, transport.readId())) present.set(i);
+        }
+        transport.writeData(present.toByteArray());
+        transport.flush();
     }
 
+    /**
+     * Read one object's data: small ones are handed to the writer's pack and
+     * returned, big ones are streamed to the loose file target right away and
+     * null is returned.
+     */
+    private static byte[] receive(Transport transport, ObjectWriter writer, ObjectId sha, Path target) throws IOException {
+        byte[] stored = transport.readData(target, ObjectWriter.MAX_IN_MEMORY);
+        if (stored != null) {
+            writer.write(sha, stored);
+        } else {
+            writer.streamed(target);
+        }
+        return stored;
+    }
 
+    /**
+     * Ask for the chunks of a received manifest that this repository lacks, and store
+     * them. Chunks already received earlier in this push are not asked for again.
+     */
+    private static void receiveChunks(Path bareRepo, List<ObjectId> chunks, Transport transport, ObjectWriter writer) throws IOException {
+        ObjectIdSet missing = new ObjectIdSet();
+        List<ObjectId> wanted = new ArrayList<>();
+        for (ObjectId chunk : chunks) {
+            if (writer.accepted(chunk) || ObjectUtils.hasObject(bareRepo, chunk)) continue;
+            if (missing.add(chunk)) wanted.add(chunk);
+        }
+        transport.writeText("WANT " + wanted.size());
+        for (ObjectId chunk : wanted) {
+            transport.writeId(chunk);
+        }
+        transport.flush();
+        for (int i = 0; i < wanted.size(); i++) {
+            ObjectId chunk = transport.readId();
+            if (!missing.contains(chunk)) throw new IOException("unexpected chunk " + chunk);
+            receive(transport, writer, chunk, ObjectUtils.loosePath(bareRepo.resolve(OBJECTS), chunk));
+        }
+    }
 
     private void handleInit(String repoName, String path,
-                      BufferedWriter out) throws IOException {
+                      Transport transport) throws IOException {
         //Path repoPath = Paths.get(path).resolve(repoName).resolve(".cemount");
         repoManager.create(repoName);
-        out.write("OK INIT " + repoName + "\n");
-        out.flush();
-    }
-
-    private void handleClone(String repoName, String destination,
-                             BufferedWriter out) throws IOException {
-        Path bareRepo = repoManager.get(repoName);
-        byte[] data = Files.readAllBytes(bareRepo.resolve("bundle.cem"));
-        out.write("DATA " + data.length + "\n");
-        out.flush();
-        socket.getOutputStream().write(data);
-        socket.getOutputStream().flush();
+        transport.writeText("OK INIT " + repoName);
+        transport.flush();
+    }
+
+    /**
+     * The whole history of a branch: its tip, the commit count, then the same
+     * stream as a v2 fetch that has nothing.
+     */
+    private void handleClone(String repoName, String branch,
+                             Transport transport) throws IOException {
+        Repository repo = repoManager.open(repoName);
+        Path bareRepo = repo.getCemDir();
+        ObjectId tip = ObjectUtils.getRefId(bareRepo, branch);
+        transport.writeText(tip == null ? "" : tip.name());
+        if (tip == null) {
+            transport.flush();
+            return;
+        }
+        CommitGraph graph = repo.graph();
+        graph.add(tip);
+        List<ObjectId> commits = graph.commitsBetween(tip, null);
+        transport.writeText(String.valueOf(commits.size()));
+        sendPack(transport, bareRepo, graph, commits, Collections.emptyList());
+        transport.flush();
     }
 
     // ... other command handlers
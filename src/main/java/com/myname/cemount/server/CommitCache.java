@@ -0,0 +1,102 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.Commit;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.Tree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide LRU cache of parsed commits and trees, shared by the client commands
+ * and by every server connection. Object ids are content hashes, so one id means the
+ * same object in every repository and the key does not need the repo path.
+ *
+ * The bound is a weight, not an entry count: a commit or tree weighs 1 + its number
+ * of entries, so a few huge ones cannot blow up the heap.
+ * Size it with -Dcem.commitCache.weight=N (default 262144).
+ */
+public class CommitCache {
+    private static final long MAX_WEIGHT = Long.getLong("cem.commitCache.weight", 262_144L);
+
+    private static final Map<ObjectId, Object> CACHE = new LinkedHashMap<>(256, 0.75f, true);
+    private static long weight;
+
+    private static final AtomicLong HITS   = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    public static Commit get(Path cemDir, ObjectId sha) throws IOException {
+        Object cached = lookup(sha);
+        if (cached instanceof Commit) return (Commit) cached;
+        // parse outside the lock, two threads racing on the same id just both parse it
+        Commit commit = Commit.parse(sha, ObjectUtils.readCommitText(cemDir, sha));
+        insert(sha, commit);
+        return commit;
+    }
+
+    public static Tree getTree(Path cemDir, ObjectId sha) throws IOException {
+        Object cached = lookup(sha);
+        if (cached instanceof Tree) return (Tree) cached;
+        Tree tree = Tree.parse(sha, ObjectUtils.readObjectText(cemDir, sha));
+        insert(sha, tree);
+        return tree;
+    }
+
+    private static Object lookup(ObjectId sha) {
+        synchronized (CACHE) {
+            Object cached = CACHE.get(sha);
+            if (cached != null) {
+                HITS.incrementAndGet();
+                return cached;
+            }
+        }
+        MISSES.incrementAndGet();
+        return null;
+    }
+
+    private static void insert(ObjectId sha, Object parsed) {
+        synchronized (CACHE) {
+            Object old = CACHE.put(sha, parsed);
+            if (old != null) weight -= weigh(old);
+            weight += weigh(parsed);
+            Iterator<Object> eldest = CACHE.values().iterator();
+            while (weight > MAX_WEIGHT && eldest.hasNext()) {
+                Object evicted = eldest.next();
+                if (evicted == parsed) break;
+                weight -= weigh(evicted);
+                eldest.remove();
+            }
+        }
+    }
+
+    public static long hits() {
+        return HITS.get();
+    }
+
+    public static long misses() {
+        return MISSES.get();
+    }
+
+    public static String stats() {
+        long h = HITS.get();
+        long m = MISSES.get();
+        int size;
+        long w;
+        synchronized (CACHE) {
+            size = CACHE.size();
+            w = weight;
+        }
+        long rate = h + m == 0 ? 0 : (100 * h) / (h + m);
+        return String.format("commit cache: %d objects, weight %d/%d, hits %d, misses %d (%d%% hit rate)",
+                size, w, MAX_WEIGHT, h, m, rate);
+    }
+
+    private static long weigh(Object parsed) {
+        if (parsed instanceof Tree) return 1L + ((Tree) parsed).getEntries().size();
+        return 1L + ((Commit) parsed).getEntries().size();
+    }
+}
@@ -0,0 +1,291 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.Commit;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.ObjectIdMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * .cemount/commit-graph: parent links, timestamps and generation numbers of every
+ * known commit in one fixed-width table, so history walks never inflate commits.
+ *
+ *   "CGRF" | version | count | rows...
+ *   row:   id (20) | parent1 row (4) | parent2 row (4) | generation (4) | timestamp (8)
+ *
+ * Rows are append-only and topologically ordered (a parent always has a lower row
+ * than its children), -1 means no parent. The count is written after the rows, so
+ * an interrupted append just leaves unused bytes that the next append overwrites.
+ * generation is 1 for a root and 1 + the max of the parents otherwise, so a commit
+ * can only reach commits with a lower generation.
+ */
+public class CommitGraph {
+    private static final String GRAPH_FILE  = "commit-graph";
+    private static final int    MAGIC       = 0x43475246; // CGRF
+    private static final int    VERSION     = 1;
+    private static final int    HEADER_SIZE = 12;
+    private static final int    ROW_SIZE    = 40;
+    private static final int    NONE        = -1;
+
+    // paint flags
+    private static final byte LEFT   = 1;
+    private static final byte RIGHT  = 2;
+    private static final byte STALE  = 4;
+    private static final byte RESULT = 8;
+
+    private static final Map<Path, CommitGraph> GRAPHS = new HashMap<>();
+
+    private final Path cemDir;
+    private final Path file;
+    private final ObjectIdMap<Integer> rows = new ObjectIdMap<>();
+    private ObjectId[] ids = new ObjectId[64];
+    private int[] parent1 = new int[64];
+    private int[] parent2 = new int[64];
+    private int[] generation = new int[64];
+    private long[] timestamp = new long[64];
+    private int count;
+    private long fileSize;
+
+    private CommitGraph(Path cemDir) {
+        this.cemDir = cemDir;
+        this.file = cemDir.resolve(GRAPH_FILE);
+    }
+
+    /**
+     * The graph of a repository, kept in memory per repository and reloaded when
+     * another process changed the file.
+     */
+    public static CommitGraph of(Path cemDir) throws IOException {
+        synchronized (GRAPHS) {
+            CommitGraph graph = GRAPHS.get(cemDir);
+            if (graph == null || !graph.isCurrent()) {
+                graph = new CommitGraph(cemDir);
+                graph.load();
+                GRAPHS.put(cemDir, graph);
+            }
+            return graph;
+        }
+    }
+
+    /**
+     * Make sure a commit and all its ancestors are in the graph. Missing commits are
+     * read once and appended, a known commit costs one lookup.
+     */
+    public synchronized void add(ObjectId tip) throws IOException {
+        if (rows.containsKey(tip)) return;
+        int first = count;
+
+        // depth-first, a commit is appended once all its parents have rows
+        ObjectIdMap<Commit> loaded = new ObjectIdMap<>();
+        Deque<ObjectId> stack = new ArrayDeque<>();
+        stack.push(tip);
+        while (!stack.isEmpty()) {
+            ObjectId id = stack.peek();
+            if (rows.containsKey(id)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = loaded.get(id);
+            if (commit == null) {
+                commit = ObjectUtils.readCommit(cemDir, id);
+                loaded.put(id, commit);
+                boolean pushed = false;
+                for (ObjectId parent : commit.getParents()) {
+                    if (!rows.containsKey(parent) && !loaded.containsKey(parent)) {
+                        stack.push(parent);
+                        pushed = true;
+                    }
+                }
+                if (pushed) continue;
+            }
+            stack.pop();
+            List<ObjectId> parents = commit.getParents();
+            int p1 = parents.size() > 0 ? row(parents.get(0)) : NONE;
+            int p2 = parents.size() > 1 ? row(parents.get(1)) : NONE;
+            int gen = 1 + Math.max(p1 == NONE ? 0 : generation[p1], p2 == NONE ? 0 : generation[p2]);
+            append(id, p1, p2, gen, commit.getTimestamp());
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((count - first) * ROW_SIZE);
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (int r = first; r < count; r++) {
+            ids[r].copyRawTo(raw, 0);
+            out.put(raw).putInt(parent1[r]).putInt(parent2[r]).putInt(generation[r]).putLong(timestamp[r]);
+        }
+        out.flip();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (ch.size() < HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(0);
+                header.flip();
+                ch.write(header, 0);
+            }
+            long at = HEADER_SIZE + (long) first * ROW_SIZE;
+            while (out.hasRemaining()) {
+                at += ch.write(out, at);
+            }
+            ch.write(ByteBuffer.allocate(4).putInt(0, count), 8);
+            fileSize = ch.size();
+        }
+    }
+
+    public synchronized boolean contains(ObjectId id) {
+        return rows.containsKey(id);
+    }
+
+    public synchronized long getTimestamp(ObjectId id) {
+        return timestamp[row(id)];
+    }
+
+    public synchronized int getGeneration(ObjectId id) {
+        return generation[row(id)];
+    }
+
+    /** True if ancestor is reachable from descendant, a commit is its own ancestor. */
+    public synchronized boolean isAncestor(ObjectId ancestor, ObjectId descendant) {
+        int target = row(ancestor);
+        int minGen = generation[target];
+        boolean[] seen = new boolean[count];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(row(descendant));
+        while (!stack.isEmpty()) {
+            int r = stack.pop();
+            if (r == target) return true;
+            if (seen[r] || generation[r] <= minGen) continue;
+            seen[r] = true;
+            if (parent1[r] != NONE) stack.push(parent1[r]);
+            if (parent2[r] != NONE) stack.push(parent2[r]);
+        }
+        return false;
+    }
+
+    /** Best common ancestor of a and b, or null if their histories never meet. */
+    public synchronized ObjectId mergeBase(ObjectId a, ObjectId b) {
+        if (a.equals(b)) return a;
+        byte[] flags = paint(row(a), row(b), STALE);
+        int best = NONE;
+        for (int r = 0; r < count; r++) {
+            if ((flags[r] & RESULT) != 0 && (best == NONE || generation[r] > generation[best])) best = r;
+        }
+        return best == NONE ? null : ids[best];
+    }
+
+    /**
+     * Commits reachable from tip but not from exclude, oldest first.
+     * An exclude that is null or not in the graph excludes nothing.
+     */
+    public synchronized List<ObjectId> commitsBetween(ObjectId tip, ObjectId exclude) {
+        int ex = exclude != null && rows.containsKey(exclude) ? row(exclude) : NONE;
+        byte[] flags = paint(row(tip), ex, RIGHT);
+        List<ObjectId> out = new ArrayList<>();
+        for (int r = 0; r < count; r++) {
+            if ((flags[r] & (LEFT | RIGHT)) == LEFT) out.add(ids[r]);
+        }
+        return out;
+    }
+
+    /**
+     * Flag everything reachable from left with LEFT and from right with RIGHT,
+     * walking rows by descending generation so every row is popped after all its
+     * children. A row reached from both sides whose children were not is a merge
+     * base (RESULT), its ancestors become STALE. The walk stops as soon as every
+     * queued row carries the done flag.
+     */
+    private byte[] paint(int left, int right, byte done) {
+        byte[] flags = new byte[count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+                (x, y) -> generation[x] != generation[y] ? generation[y] - generation[x] : y - x);
+        flags[left] = LEFT;
+        queue.add(left);
+        if (right != NONE) {
+            if (right != left) queue.add(right);
+            flags[right] |= RIGHT;
+        }
+        int active = 0;
+        for (int r : queue) {
+            if ((flags[r] & done) == 0) active++;
+        }
+
+        while (active > 0) {
+            int r = queue.poll();
+            byte f = flags[r];
+            if ((f & done) == 0) active--;
+            if ((f & (LEFT | RIGHT)) == (LEFT | RIGHT) && (f & STALE) == 0) {
+                flags[r] |= RESULT;
+                f |= STALE;
+            }
+            f &= LEFT | RIGHT | STALE;
+            for (int p : new int[]{parent1[r], parent2[r]}) {
+                if (p == NONE) continue;
+                byte before = flags[p];
+                byte after = (byte) (before | f);
+                if (before == after) continue;
+                flags[p] = after;
+                if (before == 0) {
+                    queue.add(p);
+                    if ((after & done) == 0) active++;
+                } else if ((before & done) == 0 && (after & done) != 0) {
+                    active--;
+                }
+            }
+        }
+        return flags;
+    }
+
+    private int row(ObjectId id) {
+        Integer r = rows.get(id);
+        if (r == null) throw new IllegalArgumentException("commit not in commit-graph: " + id);
+        return r;
+    }
+
+    private void append(ObjectId id, int p1, int p2, int gen, long time) {
+        if (count == ids.length) {
+            int n = count * 2;
+            ids = Arrays.copyOf(ids, n);
+            parent1 = Arrays.copyOf(parent1, n);
+            parent2 = Arrays.copyOf(parent2, n);
+            generation = Arrays.copyOf(generation, n);
+            timestamp = Arrays.copyOf(timestamp, n);
+        }
+        ids[count] = id;
+        parent1[count] = p1;
+        parent2[count] = p2;
+        generation[count] = gen;
+        timestamp[count] = time;
+        rows.put(id, count);
+        count++;
+    }
+
+    synchronized boolean isCurrent() throws IOException {
+        return Files.exists(file) ? Files.size(file) == fileSize : fileSize == 0;
+    }
+
+    private void load() throws IOException {
+        if (Files.notExists(file)) return;
+        byte[] data = Files.readAllBytes(file);
+        fileSize = data.length;
+        if (data.length < HEADER_SIZE) return;
+        ByteBuffer in = ByteBuffer.wrap(data);
+        if (in.getInt(0) != MAGIC || in.getInt(4) != VERSION) {
+            throw new IOException("not a commit-graph: " + file);
+        }
+        int n = Math.min(in.getInt(8), (data.length - HEADER_SIZE) / ROW_SIZE);
+        for (int i = 0; i < n; i++) {
+            int at = HEADER_SIZE + i * ROW_SIZE;
+            append(ObjectId.fromRaw(data, at), in.getInt(at + 20), in.getInt(at + 24),
+                    in.getInt(at + 28), in.getLong(at + 32));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.myname.cemount.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Client side keep-alive. A v2 connection whose command finished is parked here
+ * per server, and {@link Transport#connect} hands it out again instead of paying
+ * for a TCP connect and the HELLO round trip. The server keeps the connection in
+ * its selector meanwhile, so a parked socket costs it no thread.
+ *
+ * Off unless -Dcem.pool=true: one cem process usually runs one command, only tools
+ * that run many commands in one JVM (a batch sync over many repos of a server)
+ * have something to reuse.
+ */
+public final class ConnectionPool {
+    private static final boolean ENABLED  = Boolean.getBoolean("cem.pool");
+    private static final int     MAX_IDLE = 4;
+
+    private static final Map<InetSocketAddress, Deque<Socket>> IDLE = new HashMap<>();
+
+    static {
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(ConnectionPool::closeAll, "cem-pool-close"));
+        }
+    }
+
+    private ConnectionPool() {
+    }
+
+    /**
+     * Done with a connection whose last exchange completed: park it for the next
+     * {@link Transport#connect} to the same server, or close it if the pool is off,
+     * full, or the connection cannot be reused.
+     */
+    public static void release(Transport transport) throws IOException {
+        if (!ENABLED || transport.version() < Transport.PROTOCOL_VERSION || !transport.idle()) {
+            transport.close();
+            return;
+        }
+        Socket socket = transport.detach();
+        InetSocketAddress server = (InetSocketAddress) socket.getRemoteSocketAddress();
+        synchronized (IDLE) {
+            Deque<Socket> idle = IDLE.computeIfAbsent(server, k -> new ArrayDeque<>());
+            if (idle.size() < MAX_IDLE) {
+                idle.push(socket);
+                return;
+            }
+        }
+        socket.close();
+    }
+
+    /** A parked, still open v2 connection to the server, or null. */
+    static Socket take(String host, int port) {
+        if (!ENABLED) return null;
+        InetSocketAddress server = new InetSocketAddress(host, port);
+        while (true) {
+            Socket socket;
+            synchronized (IDLE) {
+                Deque<Socket> idle = IDLE.get(server);
+                socket = idle == null ? null : idle.poll();
+            }
+            if (socket == null || alive(socket)) return socket;
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /** Nothing may be waiting on a parked connection: EOF means the server closed it. */
+    private static boolean alive(Socket socket) {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null || socket.isClosed()) return false;
+        try {
+            channel.configureBlocking(false);
+            int n = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return n == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeAll() {
+        synchronized (IDLE) {
+            for (Deque<Socket> idle : IDLE.values()) {
+                for (Socket socket : idle) {
+                    try { socket.close(); } catch (IOException ignored) {}
+                }
+            }
+            IDLE.clear();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.myname.cemount.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copy/insert delta between two versions of a file.
+ *
+ * A delta is: varint(targetSize) followed by instructions
+ *   COPY   0x01 varint(offset) varint(length)   copy bytes from the base
+ *   INSERT 0x02 varint(length) bytes            literal bytes
+ *
+ * Matching works on 16 byte blocks: every block-aligned window of the base is
+ * indexed by a rolling hash, the target is scanned one byte at a time and each hit
+ * is grown backwards and forwards as far as the bytes agree.
+ */
+public class Delta {
+    private static final int  BLOCK  = 16;
+    private static final int  PRIME  = 31;
+    private static final byte COPY   = 1;
+    private static final byte INSERT = 2;
+
+    /** PRIME^(BLOCK-1), used to drop the leading byte when rolling. */
+    private static final int  POW;
+    static {
+        int p = 1;
+        for (int i = 1; i < BLOCK; i++) p *= PRIME;
+        POW = p;
+    }
+
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 8 + 16);
+        writeVarint(out, target.length);
+
+        if (base.length < BLOCK || target.length < BLOCK) {
+            insert(out, target, 0, target.length);
+            return out.toByteArray();
+        }
+
+        Map<Integer, Integer> index = new HashMap<>(base.length / BLOCK * 2);
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            index.putIfAbsent(hash(base, i), i);
+        }
+
+        int literalStart = 0;
+        int i = 0;
+        int h = hash(target, 0);
+        while (i + BLOCK <= target.length) {
+            Integer at = index.get(h);
+            if (at != null && regionEquals(base, at, target, i, BLOCK)) {
+                int b = at;
+                int t = i;
+                while (b > 0 && t > literalStart && base[b - 1] == target[t - 1]) {
+                    b--;
+                    t--;
+                }
+                int len = (i - t) + BLOCK;
+                while (b + len < base.length && t + len < target.length && base[b + len] == target[t + len]) {
+                    len++;
+                }
+                insert(out, target, literalStart, t);
+                out.write(COPY);
+                writeVarint(out, b);
+                writeVarint(out, len);
+                i = t + len;
+                literalStart = i;
+                if (i + BLOCK <= target.length) h = hash(target, i);
+            } else {
+                if (i + BLOCK < target.length) {
+                    h = (h - (target[i] & 0xff) * POW) * PRIME + (target[i + BLOCK] & 0xff);
+                }
+                i++;
+            }
+        }
+        insert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    public static byte[] apply(byte[] base, byte[] delta, int offset) throws IOException {
+        int[] pos = {offset};
+        long size = readVarint(delta, pos);
+        if (size > Integer.MAX_VALUE) throw new IOException("delta result too large");
+        byte[] result = new byte[(int) size];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            byte op = delta[pos[0]++];
+            if (op == COPY) {
+                long from = readVarint(delta, pos);
+                long len = readVarint(delta, pos);
+                if (from > base.length || len > base.length - from || len > result.length - written) {
+                    throw new IOException("corrupt delta: copy out of range");
+                }
+                System.arraycopy(base, (int) from, result, written, (int) len);
+                written += (int) len;
+            } else if (op == INSERT) {
+                long len = readVarint(delta, pos);
+                if (len > delta.length - pos[0] || len > result.length - written) {
+                    throw new IOException("corrupt delta: insert out of range");
+                }
+                System.arraycopy(delta, pos[0], result, written, (int) len);
+                pos[0] += (int) len;
+                written += (int) len;
+            } else {
+                throw new IOException("corrupt delta: unknown op " + op);
+            }
+        }
+        if (written != result.length) throw new IOException("corrupt delta: short result");
+        return result;
+    }
+
+    private static void insert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        if (to <= from) return;
+        out.write(INSERT);
+        writeVarint(out, to - from);
+        out.write(data, from, to - from);
+    }
+
+    private static int hash(byte[] data, int at) {
+        int h = 0;
+        for (int k = 0; k < BLOCK; k++) {
+            h = h * PRIME + (data[at + k] & 0xff);
+        }
+        return h;
+    }
+
+    private static boolean regionEquals(byte[] a, int ai, byte[] b, int bi, int len) {
+        for (int k = 0; k < len; k++) {
+            if (a[ai + k] != b[bi + k]) return false;
+        }
+        return true;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(byte[] data, int[] pos) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (pos[0] >= data.length) throw new IOException("corrupt delta: truncated varint");
+            int b = data[pos[0]++] & 0xff;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+            shift += 7;
+            // nine groups at most, so a value never reaches the sign bit
+            if (shift > 56) throw new IOException("corrupt delta: varint too long");
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.myname.cemount.server;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps how many threads read or write objects at once. A slot is held only around
+ * the disk work itself, never while waiting on a socket, so a slow client does not
+ * keep one from the other commands.
+ */
+final class DiskSlots {
+    private final Semaphore slots;
+
+    DiskSlots(int limit) {
+        this.slots = new Semaphore(limit, true);
+    }
+
+    void acquire() throws InterruptedIOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a disk slot");
+        }
+    }
+
+    void release() {
+        slots.release();
+    }
+}
@@ -0,0 +1,179 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The v2 wire format: every message is one frame,
+ *
+ *   type (1) | payload length (4, big-endian) | payload
+ *
+ * TEXT carries utf-8, ID the 20 raw bytes of an id, DATA raw bytes and END nothing.
+ * Lengths are never parsed from text, and nothing reaches the socket before a flush.
+ * A frame read into memory may be at most MAX_FRAME long; a longer length from the
+ * peer closes the connection before anything is allocated.
+ */
+final class FrameTransport implements Transport {
+    static final byte TEXT = 1;
+    static final byte ID   = 2;
+    static final byte DATA = 3;
+    static final byte END  = 4;
+    static final int  MAX_FRAME = 16 * 1024 * 1024;
+
+    private final Socket socket;
+    private boolean detached;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final byte[] raw = new byte[ObjectId.RAW_LENGTH];
+
+    FrameTransport(Socket socket, BufferedInputStream in, BufferedOutputStream out) {
+        this.socket = socket;
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(out);
+    }
+
+    @Override
+    public int version() {
+        return PROTOCOL_VERSION;
+    }
+
+    @Override
+    public void writeText(String text) throws IOException {
+        byte[] bytes = text.getBytes(UTF_8);
+        header(TEXT, bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public String readText() throws IOException {
+        int type = in.read();
+        if (type < 0) return null;
+        int len = length(type, TEXT, MAX_FRAME);
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Override
+    public void writeId(ObjectId id) throws IOException {
+        header(ID, ObjectId.RAW_LENGTH);
+        id.copyRawTo(raw, 0);
+        out.write(raw);
+    }
+
+    @Override
+    public ObjectId readId() throws IOException {
+        return id(length(in.readUnsignedByte(), ID, ObjectId.RAW_LENGTH));
+    }
+
+    @Override
+    public void writeEnd() throws IOException {
+        header(END, 0);
+    }
+
+    @Override
+    public ObjectId readIdOrEnd() throws IOException {
+        int type = in.readUnsignedByte();
+        if (type == END) {
+            length(type, END, 0);
+            return null;
+        }
+        return id(length(type, ID, ObjectId.RAW_LENGTH));
+    }
+
+    @Override
+    public void writeData(ByteBuffer data) throws IOException {
+        header(DATA, data.remaining());
+        ObjectUtils.writeBuffer(data, out);
+    }
+
+    @Override
+    public void writeData(StoredObject data) throws IOException {
+        header(DATA, data.length());
+        data.writeTo(out, socket);
+    }
+
+    @Override
+    public byte[] readData() throws IOException {
+        byte[] data = new byte[length(in.readUnsignedByte(), DATA, MAX_FRAME)];
+        in.readFully(data);
+        return data;
+    }
+
+    @Override
+    public void readData(Path target) throws IOException {
+        // streamed to disk, so any int length will do
+        ObjectUtils.receiveObject(in, length(in.readUnsignedByte(), DATA, Integer.MAX_VALUE), target);
+    }
+
+    @Override
+    public byte[] readData(Path target, int max) throws IOException {
+        int len = length(in.readUnsignedByte(), DATA, Integer.MAX_VALUE);
+        if (len > max) {
+            ObjectUtils.receiveObject(in, len, target);
+            return null;
+        }
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public boolean idle() throws IOException {
+        return in.available() == 0;
+    }
+
+    @Override
+    public Socket detach() {
+        detached = true;
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!detached) socket.close();
+    }
+
+    private void header(byte type, int len) throws IOException {
+        out.writeByte(type);
+        out.writeInt(len);
+    }
+
+    /**
+     * Payload length of a frame whose type byte was just read, if it is the expected
+     * type. A length over max closes the connection: nothing after it can be trusted.
+     */
+    private int length(int type, byte expected, int max) throws IOException {
+        if (type != expected) throw new IOException("expected frame type " + expected + ", got " + type);
+        int len = in.readInt();
+        if (len < 0 || len > max) {
+            close();
+            throw new IOException("bad frame length " + len);
+        }
+        return len;
+    }
+
+    private ObjectId id(int len) throws IOException {
+        if (len != ObjectId.RAW_LENGTH) {
+            close();
+            throw new IOException("bad id frame length " + len);
+        }
+        in.readFully(raw);
+        return ObjectId.fromRaw(raw, 0);
+    }
+}
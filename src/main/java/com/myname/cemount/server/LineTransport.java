@@ -0,0 +1,168 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The v1 wire format: every text and id is a line, data is its decimal length on
+ * a line followed by the raw bytes, and "OK " ends a list of ids. Lengths follow
+ * the {@link FrameTransport} rules: data read into memory is at most MAX_FRAME,
+ * and a length that is not a number or out of range closes the connection.
+ */
+final class LineTransport implements Transport {
+    private static final String END = "OK ";
+
+    private final Socket socket;
+    private boolean detached;
+    private final BufferedInputStream in;
+    private final BufferedOutputStream out;
+    private String pending;
+
+    /** @param pending a line already read from in, returned by the first readText */
+    LineTransport(Socket socket, BufferedInputStream in, BufferedOutputStream out, String pending) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.pending = pending;
+    }
+
+    @Override
+    public int version() {
+        return 1;
+    }
+
+    @Override
+    public void writeText(String text) throws IOException {
+        out.write((text + "\n").getBytes(UTF_8));
+    }
+
+    @Override
+    public String readText() throws IOException {
+        if (pending != null) {
+            String line = pending;
+            pending = null;
+            return line;
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString(UTF_8.name());
+    }
+
+    @Override
+    public void writeId(ObjectId id) throws IOException {
+        writeText(id.name());
+    }
+
+    @Override
+    public ObjectId readId() throws IOException {
+        return ObjectId.fromHex(requireText().trim());
+    }
+
+    @Override
+    public void writeEnd() throws IOException {
+        writeText(END);
+    }
+
+    @Override
+    public ObjectId readIdOrEnd() throws IOException {
+        String line = requireText();
+        if (line.startsWith(END.trim())) return null;
+        return ObjectId.fromHex(line.trim());
+    }
+
+    @Override
+    public void writeData(ByteBuffer data) throws IOException {
+        writeText(String.valueOf(data.remaining()));
+        ObjectUtils.writeBuffer(data, out);
+    }
+
+    @Override
+    public void writeData(StoredObject data) throws IOException {
+        writeText(String.valueOf(data.length()));
+        data.writeTo(out, socket);
+    }
+
+    @Override
+    public byte[] readData() throws IOException {
+        return readData(null, FrameTransport.MAX_FRAME);
+    }
+
+    @Override
+    public void readData(Path target) throws IOException {
+        ObjectUtils.receiveObject(in, readLength(), target);
+    }
+
+    @Override
+    public byte[] readData(Path target, int max) throws IOException {
+        long len = readLength();
+        if (len > Math.min(max, FrameTransport.MAX_FRAME)) {
+            if (target == null) {
+                close();
+                throw new IOException("data too large: " + len);
+            }
+            ObjectUtils.receiveObject(in, len, target);
+            return null;
+        }
+        byte[] data = in.readNBytes((int) len);
+        if (data.length != len) throw new EOFException("data cut short");
+        return data;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public boolean idle() throws IOException {
+        return pending == null && in.available() == 0;
+    }
+
+    @Override
+    public Socket detach() {
+        detached = true;
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!detached) socket.close();
+    }
+
+    private String requireText() throws IOException {
+        String line = readText();
+        if (line == null) throw new EOFException("connection closed");
+        return line;
+    }
+
+    private long readLength() throws IOException {
+        String line = requireText().trim();
+        long len;
+        try {
+            len = Long.parseLong(line);
+        } catch (NumberFormatException e) {
+            close();
+            throw new IOException("bad data length " + line);
+        }
+        // streamed data still becomes an int-sized stored object
+        if (len < 0 || len > Integer.MAX_VALUE) {
+            close();
+            throw new IOException("bad data length " + len);
+        }
+        return len;
+    }
+}
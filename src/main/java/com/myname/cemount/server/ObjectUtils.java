@@ -1,24 +1,50 @@
 package com.myname.cemount.server;
 
+import com.myname.cemount.core.Commit;
+import com.myname.cemount.core.ObjectId;
 import com.myname.cemount.core.Pair;
+import com.myname.cemount.core.Tree;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class ObjectUtils {
     private static final int    BUFFER_SIZE    = 8192;
+    private static final int    MAP_THRESHOLD  = 64 * 1024;
+    private static final int    DELTA_HEAD     = 4 * 1024;
+    private static final int    STREAM_BUFFER  = 64 * 1024;
+    private static final String DELTA_TYPE     = "delta";
+    private static final String CHUNKED_TYPE   = "chunked";
+    private static final String CHUNK_TYPE     = "chunk";
+    private static final String COMMIT_TYPE    = "commit";
+    private static final int    CHUNK_ENTRY    = 24;
+    private static final long   MIN_CHUNKED_FILE = 1024 * 1024;
+    static final int            MAX_DELTA_DEPTH = 10;
+    private static final int    MAX_DELTA_HOPS  = 64;
+    private static final int    MIN_DELTA_SIZE  = 512;
+    private static final int    MAX_DELTA_SIZE  = 16 * 1024 * 1024;
+    /** Largest file stored as one blob: stored lengths are ints, and zlib may grow the data a little. */
+    public static final long    MAX_BLOB_SIZE   = Integer.MAX_VALUE - 16 * 1024 * 1024;
     private static final String REFS_DIR       = "refs";
     private static final String HEADS_DIR      = "heads";
     private static final String HEAD_FILE      = "HEAD";
@@ -40,6 +66,26 @@ public class ObjectUtils {
         }
     }
 
+    public static byte[] zlibDecompress(ByteBuffer compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed.duplicate());
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int r = inflater.inflate(buf);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("truncated zlib stream");
+                }
+                out.write(buf, 0, r);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     public static byte[] zlibCompress(byte[] input) throws IOException {
         Deflater def = new Deflater();
         def.setInput(input);
@@ -56,22 +102,6 @@ public class ObjectUtils {
         }
     }
 
-    /**
-     * Compute SHA-1 digest and return lowercase hex string.
-     */
-    private static String sha1Hex(byte[] data) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] digest = md.digest(data);
-            StringBuilder sb = new StringBuilder(digest.length * 2);
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-1 not available", e);
-        }
-    }
     /*----------------------------------------------------------------------*/
     /*   Server-side storage of received objects (PushCommand helper)       */
     /*----------------------------------------------------------------------*/
@@ -81,23 +111,552 @@ public class ObjectUtils {
      * Automatically creates subdirectories.
      * @param objectsRoot Path to repoRoot/.cemount/objects
      * @param rawCompressed must be the exact bytes read from client (compressed "blob <size>\0data").
-     * @return the SHA-1 hash of the full blob (matching Git), lowercase hex
+     * @return the SHA-1 id of the full blob (matching Git)
      * @throws IOException on I/O errors
      */
-    public static String storeObject(Path objectsRoot, byte[] rawCompressed) throws IOException {
+    public static ObjectId storeObject(Path objectsRoot, byte[] rawCompressed) throws IOException {
         byte[] full = zlibDecompress(rawCompressed);
-        String sha = sha1Hex(full);
+        ObjectId sha = ObjectId.hash(full);
+
+        writeLoose(loosePath(objectsRoot, sha), rawCompressed);
+        return sha;
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Tree objects                                                       */
+    /*----------------------------------------------------------------------*/
+
+    /** The parsed tree, from the shared {@link CommitCache} when it was read before. */
+    public static Tree readTree(Path cemDir, ObjectId sha) throws IOException {
+        return CommitCache.getTree(cemDir, sha);
+    }
+
+    /**
+     * Store a tree for entries sorted by name, unless an identical one exists.
+     * @return the tree's id
+     */
+    public static ObjectId writeTree(Path cemDir, List<Tree.Entry> entries) throws IOException {
+        byte[] full = Tree.format(entries);
+        ObjectId sha = ObjectId.hash(full);
+        if (!hasObject(cemDir, sha)) {
+            writeLoose(loosePath(cemDir.resolve(OBJECTS), sha), zlibCompress(full));
+        }
+        return sha;
+    }
+
+    /** Parse a tree straight from its compressed bytes, before it is stored. */
+    public static Tree decodeTree(ObjectId sha, byte[] compressed) throws IOException {
+        byte[] full = zlibDecompress(compressed);
+        int nul = indexOfNul(full);
+        if (nul < 0 || !new String(full, 0, nul, UTF_8).startsWith(Tree.TYPE + " ")) {
+            throw new IOException("not a tree object: " + sha);
+        }
+        return Tree.parse(sha, new String(full, nul + 1, full.length - nul - 1, UTF_8));
+    }
+
+    /** Append every file under a tree to out, with its path from the root. */
+    public static void listTree(Path cemDir, ObjectId sha, String prefix, List<Pair> out) throws IOException {
+        for (Tree.Entry e : readTree(cemDir, sha).getEntries()) {
+            if (e.isTree()) {
+                listTree(cemDir, e.getId(), prefix + e.getName() + "/", out);
+            } else {
+                out.add(new Pair(e.getId(), prefix + e.getName()));
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Delta objects                                                      */
+    /*----------------------------------------------------------------------*/
+
+    /**
+     * Store a blob loose under objects/xx/yy..., as a delta against baseSha when
+     * that takes less than half the space and the base chain is not yet
+     * MAX_DELTA_DEPTH long. A base that is chunked or larger than MAX_DELTA_SIZE
+     * is not used, it is not inflated either. The id is the sha of the full blob either way.
+     * A delta object is "delta &lt;size&gt;\0" + base id (20 bytes) + depth (1 byte) + {@link Delta} bytes.
+     * @param store full "blob &lt;size&gt;\0data" bytes
+     * @param baseSha earlier blob of the same path, or null
+     */
+    public static void storeBlob(Path cemDir, ObjectId sha, byte[] store, ObjectId baseSha) throws IOException {
+        byte[] toWrite = store;
+        if (baseSha != null && !baseSha.equals(sha)
+                && store.length >= MIN_DELTA_SIZE && store.length <= MAX_DELTA_SIZE
+                && hasObject(cemDir, baseSha)) {
+            ByteBuffer baseRaw = openObject(cemDir, baseSha);
+            if (isDeltaBase(baseRaw)) {
+                byte[] baseStored = zlibDecompress(baseRaw);
+                int depth = deltaDepth(baseStored) + 1;
+                if (depth <= MAX_DELTA_DEPTH) {
+                    byte[] base = resolve(cemDir, baseStored, 0);
+                    byte[] delta = Delta.create(content(base), content(store));
+                    int contentLength = store.length - indexOfNul(store) - 1;
+                    if (delta.length + 21 < contentLength / 2) {
+                        toWrite = deltaObject(baseSha, depth, delta);
+                    }
+                }
+            }
+        }
+        writeLoose(loosePath(cemDir.resolve(OBJECTS), sha), zlibCompress(toWrite));
+    }
+
+    // temp file + rename: parallel adds of the same content must not see a half-written object
+    public static void writeLoose(Path objectFile, byte[] compressed) throws IOException {
+        Files.createDirectories(objectFile.getParent());
+        Path tmp = objectFile.resolveSibling(objectFile.getFileName() + ".tmp" + Thread.currentThread().getId());
+        try {
+            Files.write(tmp, compressed);
+            Files.move(tmp, objectFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /** Flush a file's data to the disk. */
+    public static void sync(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Flush a directory, so the names of files created or renamed in it survive a
+     * crash too. Not every platform can open a directory; there it is left to the OS.
+     */
+    public static void syncDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Full "blob &lt;size&gt;\0data" bytes of an object, with delta chains resolved.
+     */
+    public static byte[] readObject(Path cemDir, ObjectId sha) throws IOException {
+        return resolve(cemDir, zlibDecompress(openObject(cemDir, sha)), 0);
+    }
+
+    /**
+     * Like {@link #openObject}, but a delta is expanded and recompressed, so the
+     * result can be sent to a peer that may not have the base.
+     */
+    public static ByteBuffer openFullObject(Path cemDir, ObjectId sha) throws IOException {
+        ByteBuffer stored = openObject(cemDir, sha);
+        if (deltaBase(stored) == null) return stored;
+        return ByteBuffer.wrap(zlibCompress(readObject(cemDir, sha)));
+    }
+
+    /**
+     * Base id of a stored delta object, or null if it is stored in full.
+     * Only the first few bytes are inflated.
+     */
+    public static ObjectId deltaBase(StoredObject stored) throws IOException {
+        // a dynamic deflate block header is at most a few hundred bytes
+        return deltaBase(stored.head(DELTA_HEAD));
+    }
+
+    public static ObjectId deltaBase(ByteBuffer stored) throws IOException {
+        byte[] head = inflatePrefix(stored, 48);
+        int nul = indexOfNul(head);
+        if (nul < 0 || !new String(head, 0, nul, UTF_8).startsWith(DELTA_TYPE + " ")) return null;
+        if (head.length < nul + 21) throw new IOException("corrupt delta object");
+        return ObjectId.fromRaw(head, nul + 1);
+    }
+
+    private static byte[] resolve(Path cemDir, byte[] stored, int hops) throws IOException {
+        int nul = indexOfNul(stored);
+        if (nul >= 0 && new String(stored, 0, nul, UTF_8).startsWith(CHUNKED_TYPE + " ")) {
+            return assemble(cemDir, parseManifest(stored, nul + 1));
+        }
+        if (nul < 0 || !new String(stored, 0, nul, UTF_8).startsWith(DELTA_TYPE + " ")) return stored;
+        if (hops >= MAX_DELTA_HOPS) throw new IOException("delta chain too deep");
+        ObjectId baseSha = ObjectId.fromRaw(stored, nul + 1);
+        ByteBuffer baseRaw = openObject(cemDir, baseSha);
+        if (!isDeltaBase(baseRaw)) {
+            throw new IOException("corrupt delta: base " + baseSha + " is chunked or too large");
+        }
+        byte[] base = resolve(cemDir, zlibDecompress(baseRaw), hops + 1);
+        byte[] data = Delta.apply(content(base), stored, nul + 22);
+        byte[] hdr = ("blob " + data.length + "\0").getBytes(UTF_8);
+        byte[] full = new byte[hdr.length + data.length];
+        System.arraycopy(hdr, 0, full, 0, hdr.length);
+        System.arraycopy(data, 0, full, hdr.length, data.length);
+        return full;
+    }
+
+    /**
+     * Whether a stored object may be inflated as a delta base, from its header
+     * alone: a blob, or the target of a delta, of at most MAX_DELTA_SIZE. A
+     * chunked manifest never is.
+     */
+    private static boolean isDeltaBase(ByteBuffer stored) throws IOException {
+        byte[] head = inflatePrefix(stored, 48);
+        int nul = indexOfNul(head);
+        String[] hdr = nul < 0 ? new String[0] : new String(head, 0, nul, UTF_8).split(" ");
+        if (hdr.length != 2) throw new IOException("corrupt object header");
+        if (hdr[0].equals(CHUNKED_TYPE)) return false;
+        if (hdr[0].equals(DELTA_TYPE)) {
+            if (head.length < nul + 22) throw new IOException("corrupt delta object");
+            return Delta.readVarint(head, new int[] {nul + 22}) <= MAX_DELTA_SIZE;
+        }
+        try {
+            return Long.parseLong(hdr[1]) <= MAX_DELTA_SIZE;
+        } catch (NumberFormatException e) {
+            throw new IOException("corrupt object header");
+        }
+    }
+
+    private static int deltaDepth(byte[] stored) {
+        int nul = indexOfNul(stored);
+        if (nul < 0 || !new String(stored, 0, nul, UTF_8).startsWith(DELTA_TYPE + " ")) return 0;
+        return stored[nul + 21] & 0xff;
+    }
+
+    private static byte[] deltaObject(ObjectId baseSha, int depth, byte[] delta) {
+        byte[] hdr = (DELTA_TYPE + " " + (21 + delta.length) + "\0").getBytes(UTF_8);
+        byte[] out = new byte[hdr.length + 21 + delta.length];
+        System.arraycopy(hdr, 0, out, 0, hdr.length);
+        baseSha.copyRawTo(out, hdr.length);
+        out[hdr.length + 20] = (byte) depth;
+        System.arraycopy(delta, 0, out, hdr.length + 21, delta.length);
+        return out;
+    }
+
+    private static byte[] content(byte[] full) {
+        int nul = indexOfNul(full);
+        return Arrays.copyOfRange(full, nul + 1, full.length);
+    }
+
+    private static int indexOfNul(byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == 0) return i;
+        }
+        return -1;
+    }
+
+    private static byte[] inflatePrefix(ByteBuffer compressed, int max) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed.duplicate());
+        byte[] out = new byte[max];
+        int n = 0;
+        try {
+            while (n < max && !inflater.finished()) {
+                int r = inflater.inflate(out, n, max - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += r;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Streaming blobs                                                    */
+    /*----------------------------------------------------------------------*/
+
+    /**
+     * Store a working file as a blob and return its id. Files small enough to be
+     * delta candidates are read into one array that already holds the header;
+     * larger ones go through {@link #storeBlobStream}, so no file is ever held in
+     * memory whole. With chunk, files of MIN_CHUNKED_FILE and up are stored as
+     * chunks instead, see {@link #storeChunked}.
+     * @param baseSha earlier blob of the same path, or null
+     */
+    public static ObjectId storeFile(Path cemDir, Path file, ObjectId baseSha, boolean chunk) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (chunk && size >= MIN_CHUNKED_FILE) {
+                return storeChunked(cemDir, in, size, file);
+            }
+            if (size > MAX_BLOB_SIZE) {
+                throw new IOException(file + " is larger than 2 GB, add it with --chunk");
+            }
+            if (size > MAX_DELTA_SIZE) {
+                return storeBlobStream(cemDir, in, size, file);
+            }
+            byte[] hdr = ("blob " + size + "\0").getBytes(UTF_8);
+            byte[] store = new byte[hdr.length + (int) size];
+            System.arraycopy(hdr, 0, store, 0, hdr.length);
+            ByteBuffer buf = ByteBuffer.wrap(store, hdr.length, (int) size);
+            while (buf.hasRemaining()) {
+                if (in.read(buf) < 0) throw new IOException(file + " changed while it was added");
+            }
+            if (in.read(ByteBuffer.allocate(1)) >= 0) throw new IOException(file + " changed while it was added");
+            ObjectId sha = ObjectId.hash(store);
+            if (!hasObject(cemDir, sha)) {
+                storeBlob(cemDir, sha, store, baseSha);
+            }
+            return sha;
+        }
+    }
+
+    /** The id a working file would get as a blob, without storing anything. */
+    public static ObjectId hashFile(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MessageDigest md = ObjectId.sha1();
+            md.update(("blob " + in.size() + "\0").getBytes(UTF_8));
+            ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER);
+            while (in.read(buf) != -1) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+            return ObjectId.fromDigest(md.digest());
+        }
+    }
+
+    /**
+     * One pass over the file with a fixed-size buffer: every chunk goes into the
+     * SHA-1 and the deflater together, into a temp file under objects/ that is
+     * renamed into place once the id is known (or dropped if the blob exists).
+     */
+    private static ObjectId storeBlobStream(Path cemDir, FileChannel in, long size, Path file) throws IOException {
+        Path objects = cemDir.resolve(OBJECTS);
+        Files.createDirectories(objects);
+        Path tmp = Files.createTempFile(objects, "blob", ".tmp");
+        MessageDigest md = ObjectId.sha1();
+        Deflater def = new Deflater();
+        try {
+            try (OutputStream out = new DeflaterOutputStream(Files.newOutputStream(tmp), def, STREAM_BUFFER)) {
+                byte[] hdr = ("blob " + size + "\0").getBytes(UTF_8);
+                md.update(hdr);
+                out.write(hdr);
+                ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER);
+                long total = 0;
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    md.update(buf.array(), 0, n);
+                    out.write(buf.array(), 0, n);
+                    total += n;
+                    buf.clear();
+                }
+                if (total != size) throw new IOException(file + " changed while it was added");
+            }
+            ObjectId sha = ObjectId.fromDigest(md.digest());
+            if (hasObject(cemDir, sha)) {
+                Files.delete(tmp);
+                return sha;
+            }
+            Path target = loosePath(objects, sha);
+            Files.createDirectories(target.getParent());
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return sha;
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        } finally {
+            def.end();
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Chunked blobs                                                      */
+    /*----------------------------------------------------------------------*/
 
-        String dir = sha.substring(0, 2);
-        String name = sha.substring(2);
-        Path targetDir = objectsRoot.resolve(dir);
-        Files.createDirectories(targetDir);
-        Path targetFile = targetDir.resolve(name);
+    /**
+     * Store a file as content-defined chunks ({@link Chunker}) plus a manifest. Every
+     * chunk is its own "chunk &lt;size&gt;\0data" object, so versions of a large file
+     * that differ in a few places share all other chunks. The manifest is stored
+     * under the id of the full blob, like a delta, so commits and the index do not
+     * care how a blob is stored:
+     *   "chunked &lt;size&gt;\0" + per chunk: id (20 bytes) + length (4 bytes)
+     * The file is read once through a fixed buffer that feeds the blob SHA-1 too.
+     */
+    private static ObjectId storeChunked(Path cemDir, FileChannel in, long size, Path file) throws IOException {
+        MessageDigest md = ObjectId.sha1();
+        md.update(("blob " + size + "\0").getBytes(UTF_8));
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        byte[] buf = new byte[4 * Chunker.MAX_SIZE];
+        int have = 0;
+        long total = 0;
+        boolean eof = false;
+        while (true) {
+            while (!eof && have < buf.length) {
+                int n = in.read(ByteBuffer.wrap(buf, have, buf.length - have));
+                if (n < 0) eof = true;
+                else have += n;
+            }
+            int pos = 0;
+            while (have - pos >= Chunker.MAX_SIZE || (eof && pos < have)) {
+                int len = Chunker.cut(buf, pos, have - pos);
+                md.update(buf, pos, len);
+                storeChunk(cemDir, buf, pos, len).copyRawTo(raw, 0);
+                manifest.write(raw);
+                manifest.write(ByteBuffer.allocate(4).putInt(len).array());
+                pos += len;
+                total += len;
+            }
+            System.arraycopy(buf, pos, buf, 0, have - pos);
+            have -= pos;
+            if (eof && have == 0) break;
+        }
+        if (total != size) throw new IOException(file + " changed while it was added");
 
-        Files.write(targetFile, rawCompressed, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ObjectId sha = ObjectId.fromDigest(md.digest());
+        if (!hasObject(cemDir, sha)) {
+            byte[] body = manifest.toByteArray();
+            byte[] hdr = (CHUNKED_TYPE + " " + body.length + "\0").getBytes(UTF_8);
+            byte[] stored = new byte[hdr.length + body.length];
+            System.arraycopy(hdr, 0, stored, 0, hdr.length);
+            System.arraycopy(body, 0, stored, hdr.length, body.length);
+            writeLoose(loosePath(cemDir.resolve(OBJECTS), sha), zlibCompress(stored));
+        }
         return sha;
     }
 
+    private static ObjectId storeChunk(Path cemDir, byte[] buf, int off, int len) throws IOException {
+        byte[] hdr = (CHUNK_TYPE + " " + len + "\0").getBytes(UTF_8);
+        byte[] store = new byte[hdr.length + len];
+        System.arraycopy(hdr, 0, store, 0, hdr.length);
+        System.arraycopy(buf, off, store, hdr.length, len);
+        ObjectId id = ObjectId.hash(store);
+        if (!hasObject(cemDir, id)) {
+            writeLoose(loosePath(cemDir.resolve(OBJECTS), id), zlibCompress(store));
+        }
+        return id;
+    }
+
+    /**
+     * Chunk ids of a blob stored as a manifest, or null when it is stored another
+     * way. Only the manifest is read, the chunks do not have to be present.
+     */
+    public static List<ObjectId> chunks(Path cemDir, ObjectId sha) throws IOException {
+        return chunks(openObject(cemDir, sha));
+    }
+
+    /** Like {@link #chunks(Path, ObjectId)}, for stored bytes that are not on disk yet. */
+    public static List<ObjectId> chunks(ByteBuffer stored) throws IOException {
+        byte[] head = inflatePrefix(stored, 32);
+        int nul = indexOfNul(head);
+        if (nul < 0 || !new String(head, 0, nul, UTF_8).startsWith(CHUNKED_TYPE + " ")) return null;
+        byte[] full = zlibDecompress(stored);
+        return parseManifest(full, indexOfNul(full) + 1);
+    }
+
+    private static List<ObjectId> parseManifest(byte[] stored, int from) throws IOException {
+        if ((stored.length - from) % CHUNK_ENTRY != 0) throw new IOException("corrupt chunk manifest");
+        List<ObjectId> ids = new ArrayList<>((stored.length - from) / CHUNK_ENTRY);
+        for (int i = from; i < stored.length; i += CHUNK_ENTRY) {
+            ids.add(ObjectId.fromRaw(stored, i));
+        }
+        return ids;
+    }
+
+    /** Full "blob &lt;size&gt;\0data" bytes of a chunked blob, for callers that need it in memory. */
+    private static byte[] assemble(Path cemDir, List<ObjectId> chunks) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (ObjectId id : chunks) {
+            byte[] chunk = zlibDecompress(openObject(cemDir, id));
+            int nul = indexOfNul(chunk);
+            data.write(chunk, nul + 1, chunk.length - nul - 1);
+        }
+        byte[] hdr = ("blob " + data.size() + "\0").getBytes(UTF_8);
+        byte[] full = new byte[hdr.length + data.size()];
+        System.arraycopy(hdr, 0, full, 0, hdr.length);
+        System.arraycopy(data.toByteArray(), 0, full, hdr.length, data.size());
+        return full;
+    }
+
+    /**
+     * Write the content of a blob to out without its header. Full objects are
+     * inflated through a fixed-size buffer and chunked blobs chunk by chunk; deltas
+     * are resolved in memory, which is bounded because only blobs up to
+     * MAX_DELTA_SIZE are ever stored as deltas.
+     */
+    public static void copyBlob(Path cemDir, ObjectId sha, OutputStream out) throws IOException {
+        // loose files are read as a stream, they can be larger than one mapping
+        Path loose = loosePath(cemDir.resolve(OBJECTS), sha);
+        InputStream src;
+        try {
+            src = new BufferedInputStream(Files.newInputStream(loose), STREAM_BUFFER);
+        } catch (NoSuchFileException e) {
+            src = new BufferInputStream(openObject(cemDir, sha));
+        }
+        Inflater inflater = new Inflater();
+        try (InputStream in = new InflaterInputStream(src, inflater, STREAM_BUFFER)) {
+            StringBuilder type = new StringBuilder();
+            int b;
+            while ((b = in.read()) > 0) {
+                type.append((char) b);
+            }
+            if (b < 0) throw new EOFException("no header in object " + sha);
+            if (type.toString().startsWith(DELTA_TYPE + " ")) {
+                out.write(readBlob(cemDir, sha));
+                return;
+            }
+            if (type.toString().startsWith(CHUNKED_TYPE + " ")) {
+                for (ObjectId chunk : parseManifest(in.readAllBytes(), 0)) {
+                    copyBlob(cemDir, chunk, out);
+                }
+                return;
+            }
+            in.transferTo(out);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Write the content of a blob to a working file, streamed like {@link #copyBlob}. */
+    public static void writeBlob(Path cemDir, ObjectId sha, Path target) throws IOException {
+        createPath(target);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(target), STREAM_BUFFER)) {
+            copyBlob(cemDir, sha, out);
+        }
+    }
+
+    /**
+     * Copy exactly len bytes of a received object from the wire into a temp file,
+     * then rename it to target. Nothing is buffered beyond one chunk.
+     */
+    public static void receiveObject(InputStream in, long len, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp" + Thread.currentThread().getId());
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                byte[] buf = new byte[STREAM_BUFFER];
+                long left = len;
+                while (left > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) throw new EOFException("connection closed inside object " + target.getFileName());
+                    out.write(buf, 0, n);
+                    left -= n;
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /** InputStream over a (possibly mapped) buffer, without copying it. */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        BufferInputStream(ByteBuffer buf) {
+            this.buf = buf.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+    }
+
     public static Map<String, String> parseRemotes(Path configPath) {
         Map<String, String> map = new HashMap<>();
         String key = null;
@@ -131,6 +690,14 @@ public class ObjectUtils {
         return Files.readString(refPath, UTF_8).trim();
     }
 
+    /**
+     * @return the commit a branch points at, or null while the branch has no commits
+     */
+    public static ObjectId getRefId(Path cemDir, String branch) throws IOException {
+        String ref = getRef(cemDir, branch);
+        return ObjectId.isId(ref) ? ObjectId.fromHex(ref) : null;
+    }
+
     public static String getBranch(Path cemDir) throws IOException{
         Path headPath = cemDir.resolve(HEAD_FILE);
         String[] parts = Files.readString(headPath, UTF_8).split("/");
@@ -163,15 +730,110 @@ public class ObjectUtils {
         return parts;
     }
 
-    public static byte[] loadObject(Path cemDir, String sha) throws IOException{
-        Path objPath = cemDir.resolve(OBJECTS).resolve(sha.substring(0,2)).resolve(sha.substring(2));
-        return Files.readAllBytes(objPath);
+    public static byte[] loadObject(Path cemDir, ObjectId sha) throws IOException{
+        return toArray(openObject(cemDir, sha));
+    }
+
+    public static byte[] loadCommit(Path cemDir, ObjectId sha) throws IOException {
+        return toArray(openCommit(cemDir, sha));
+    }
 
+    /**
+     * Read-only view of the stored (zlib) bytes of a blob. Packed objects and large
+     * loose files are memory-mapped, so serving them does not copy them onto the heap.
+     */
+    public static ByteBuffer openObject(Path cemDir, ObjectId sha) throws IOException {
+        return openStored(cemDir, OBJECTS, sha);
     }
 
-    public static byte[] loadCommit(Path cemDir, String sha) throws IOException {
-        Path objPath = cemDir.resolve(ECHO_FILE).resolve(sha.substring(0,2)).resolve(sha.substring(2));
-        return Files.readAllBytes(objPath);
+    public static ByteBuffer openCommit(Path cemDir, ObjectId sha) throws IOException {
+        return openStored(cemDir, ECHO_FILE, sha);
+    }
+
+    /**
+     * Like {@link #openObject}, but a large object stays a range of its file, so it
+     * can be sent with {@link StoredObject#writeTo} without being read or mapped.
+     */
+    public static StoredObject openStoredObject(Path cemDir, ObjectId sha) throws IOException {
+        return storedObject(cemDir, OBJECTS, sha);
+    }
+
+    /**
+     * Write a buffer from {@link #openObject} to a stream, in bounded chunks when it is mapped.
+     */
+    public static void writeBuffer(ByteBuffer buf, OutputStream out) throws IOException {
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
+        ByteBuffer src = buf.duplicate();
+        WritableByteChannel ch = Channels.newChannel(out);
+        while (src.hasRemaining()) {
+            ch.write(src);
+        }
+    }
+
+    /**
+     * True if the object is stored loose under objects/ or ECHO/, or in any pack.
+     */
+    public static boolean hasObject(Path cemDir, ObjectId sha) throws IOException {
+        return Files.exists(loosePath(cemDir.resolve(OBJECTS), sha))
+                || Files.exists(loosePath(cemDir.resolve(ECHO_FILE), sha))
+                || PackFile.contains(cemDir, sha);
+    }
+
+    /**
+     * Loose location of an object: dir/xx/yyyy... where xx is the first byte in hex.
+     */
+    public static Path loosePath(Path dir, ObjectId sha) {
+        String name = sha.name();
+        return dir.resolve(name.substring(0, 2)).resolve(name.substring(2));
+    }
+
+    private static ByteBuffer openStored(Path cemDir, String dir, ObjectId sha) throws IOException {
+        try (StoredObject stored = storedObject(cemDir, dir, sha)) {
+            return stored.buffer();
+        }
+    }
+
+    // loose objects win, packs are the fallback (a repack may delete the loose file under us)
+    private static StoredObject storedObject(Path cemDir, String dir, ObjectId sha) throws IOException {
+        Path objPath = loosePath(cemDir.resolve(dir), sha);
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(objPath, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            StoredObject packed = PackFile.openStored(cemDir, sha);
+            if (packed == null) throw e;
+            return packed;
+        }
+        try {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("object " + sha + " is too large to map (" + size + " bytes stored)");
+            }
+            if (size >= MAP_THRESHOLD) {
+                return new StoredObject(ch, 0, (int) size);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining() && ch.read(buf) >= 0) { }
+            buf.flip();
+            ch.close();
+            return new StoredObject(buf);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0
+                && buf.remaining() == buf.array().length) {
+            return buf.array();
+        }
+        byte[] out = new byte[buf.remaining()];
+        buf.duplicate().get(out);
+        return out;
     }
 
 
@@ -193,65 +855,71 @@ public class ObjectUtils {
         Files.write(des,lines, UTF_8,StandardOpenOption.CREATE,StandardOpenOption.APPEND);
     }
 
-    public static void updateRef(Path cemDir, String ref, String newHeadSha) throws IOException {
-        Path refPath = cemDir.resolve(ref);
-        Files.deleteIfExists(refPath);
-        Files.createFile(refPath);
-        Files.write(refPath,(newHeadSha + "\n").getBytes(UTF_8),StandardOpenOption.CREATE,StandardOpenOption.WRITE);
+    public static void updateRef(Path cemDir, String ref, ObjectId newHeadSha) throws IOException {
+        RefUpdate.set(cemDir.resolve(ref), newHeadSha);
     }
 
-    public static String readObjectText(Path cemDir, String sha) throws IOException {
-        byte[] full = zlibDecompress(loadObject(cemDir, sha));
-        // skip header (up to the first 0 byte)
-        int i = 0;
-        while (i < full.length && full[i] != 0) i++;
-        return new String(full, i+1, full.length - i - 1, UTF_8);
+    public static String readObjectText(Path cemDir, ObjectId sha) throws IOException {
+        return new String(readBlob(cemDir, sha), UTF_8);
     }
 
-    public static String readCommitText(Path cemDir, String sha) throws IOException {
-        byte[] full = zlibDecompress(loadCommit(cemDir, sha));
-        int i = 0;
-        while (i < full.length && full[i] != 0) i++;
-        return new String(full, i+1, full.length - i - 1, UTF_8);
+    /** Content of a blob without its header, as raw bytes. */
+    public static byte[] readBlob(Path cemDir, ObjectId sha) throws IOException {
+        return content(readObject(cemDir, sha));
     }
 
-    public static long getTimeStamp(Path cemDir, String sha) throws IOException {
-        String commit = readCommitText(cemDir, sha);
-        String[] lines = commit.split("\n");
-        for (String line : lines){
-            if(line.startsWith("timestamp:")){
-                String[] parts = line.split(" ");
-                return Long.parseLong(parts[parts.length - 1]);
-            }
+    /**
+     * Commit text without its header. openCommit falls back to the packs, which hold
+     * every type, so anything that is not a commit is refused here rather than
+     * parsed into a bogus commit.
+     */
+    public static String readCommitText(Path cemDir, ObjectId sha) throws IOException {
+        byte[] full = zlibDecompress(openCommit(cemDir, sha));
+        int nul = indexOfNul(full);
+        if (nul < 0 || !new String(full, 0, nul, UTF_8).startsWith(COMMIT_TYPE + " ")) {
+            throw new IOException("not a commit: " + sha);
         }
-        return 0;
+        return new String(full, nul + 1, full.length - nul - 1, UTF_8);
     }
 
-    public static List<Pair> getShaFromCommit(Path cemDir, String sha) throws IOException {
-        String commit = readCommitText(cemDir, sha);
-        String[] lines = commit.split("\n");
-        List<Pair> pairs = new ArrayList<>();
-        for (int i = 2; i < lines.length; i++){
-            if(!lines[i].isEmpty() && !lines[i].startsWith("parent:")){
-                String[] parts = lines[i].split(" ");
-                if(parts.length != 2) continue;
-                pairs.add( new Pair(parts[0],parts[1]));
-            }
-        }
-        return pairs;
+    /**
+     * True if sha is a stored commit: a loose file under ECHO/, or a packed object
+     * whose header says commit. Only the first bytes of a packed object are inflated.
+     */
+    public static boolean isCommit(Path cemDir, ObjectId sha) throws IOException {
+        if (Files.exists(loosePath(cemDir.resolve(ECHO_FILE), sha))) return true;
+        ByteBuffer packed = PackFile.open(cemDir, sha);
+        if (packed == null) return false;
+        byte[] head = inflatePrefix(packed, 48);
+        int nul = indexOfNul(head);
+        return nul >= 0 && new String(head, 0, nul, UTF_8).startsWith(COMMIT_TYPE + " ");
     }
 
-    public static String getParent(Path cemDir, String commitSha) throws IOException {
-        String commit = readCommitText(cemDir, commitSha);
-        String[] lines = commit.split("\n");
-        for (int i = 2; i < lines.length; i++){
-            if(lines[i].startsWith("parent:")){
-                String[] parts = lines[i].split(" ");
-                if(parts.length != 2) continue;
-                return parts[1];
-            }
-        }
-        return "origin";
+    /**
+     * The parsed commit, from the shared {@link CommitCache} when it was read before.
+     */
+    public static Commit readCommit(Path cemDir, ObjectId sha) throws IOException {
+        return CommitCache.get(cemDir, sha);
+    }
+
+    public static long getTimeStamp(Path cemDir, ObjectId sha) throws IOException {
+        return readCommit(cemDir, sha).getTimestamp();
+    }
+
+    /** Every file of a commit with its full path, whether it has a tree or a flat file list. */
+    public static List<Pair> getShaFromCommit(Path cemDir, ObjectId sha) throws IOException {
+        Commit commit = readCommit(cemDir, sha);
+        if (commit.getTree() == null) return commit.getEntries();
+        List<Pair> files = new ArrayList<>();
+        listTree(cemDir, commit.getTree(), "", files);
+        return files;
+    }
+
+    /**
+     * @return the parent commit, or null for the first commit of a branch
+     */
+    public static ObjectId getParent(Path cemDir, ObjectId commitSha) throws IOException {
+        return readCommit(cemDir, commitSha).getParent();
     }
 
     public static String readLine(BufferedInputStream bin) throws IOException {
@@ -0,0 +1,128 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.Commit;
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.ObjectIdSet;
+import com.myname.cemount.core.Pair;
+import com.myname.cemount.core.Tree;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists the objects a peer needs to receive a run of commits, oldest first. For
+ * each commit whose first parent the peer already has, those are the trees and
+ * blobs that differ from the parent's tree; a subtree with the same id is skipped
+ * whole. Nothing is listed twice within one walk.
+ */
+public final class ObjectWalk {
+    private final Path cemDir;
+    private final boolean withChunks;
+    private final ObjectIdSet listed = new ObjectIdSet();
+
+    /** An object to send, with the parent's object at the same path, which the peer has. */
+    public static final class Outgoing {
+        private final ObjectId id;
+        private final ObjectId parentId;
+
+        Outgoing(ObjectId id, ObjectId parentId) {
+            this.id = id;
+            this.parentId = parentId;
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public ObjectId getParentId() {
+            return parentId;
+        }
+    }
+
+    /** Receives each object as soon as the walk reaches it. */
+    public interface Visitor {
+        void visit(Outgoing obj) throws IOException;
+    }
+
+    /**
+     * @param withChunks also list the chunks of a chunked blob that the parent's
+     *                   blob did not have (a pushing client lets the server ask instead)
+     */
+    public ObjectWalk(Path cemDir, boolean withChunks) {
+        this.cemDir = cemDir;
+        this.withChunks = withChunks;
+    }
+
+    /**
+     * @param parentKnown whether the peer has the commit's first parent; if not,
+     *                    the whole snapshot is listed
+     */
+    public List<Outgoing> objectsFor(ObjectId sha, boolean parentKnown) throws IOException {
+        List<Outgoing> objects = new ArrayList<>();
+        walk(sha, parentKnown, objects::add);
+        return objects;
+    }
+
+    /** Like {@link #objectsFor}, but hands each object over as it is found instead of collecting them. */
+    public void walk(ObjectId sha, boolean parentKnown, Visitor visitor) throws IOException {
+        Commit commit = ObjectUtils.readCommit(cemDir, sha);
+        if (commit.getTree() == null) {
+            for (Pair pair : commit.getEntries()) {
+                addBlob(pair.getSha(), null, visitor);
+            }
+            return;
+        }
+        ObjectId parentTree = null;
+        if (parentKnown && commit.getParent() != null) {
+            parentTree = ObjectUtils.readCommit(cemDir, commit.getParent()).getTree();
+        }
+        diffTree(commit.getTree(), parentTree, visitor);
+    }
+
+    /** True if the object was listed by this walk, so the peer has it by the time it matters. */
+    public boolean isListed(ObjectId sha) {
+        return listed.contains(sha);
+    }
+
+    private void diffTree(ObjectId tree, ObjectId parentTree, Visitor visitor) throws IOException {
+        if (tree.equals(parentTree) || !listed.add(tree)) return;
+        visitor.visit(new Outgoing(tree, null));
+        Map<String, Tree.Entry> before = new HashMap<>();
+        if (parentTree != null) {
+            for (Tree.Entry e : ObjectUtils.readTree(cemDir, parentTree).getEntries()) {
+                before.put(e.getName(), e);
+            }
+        }
+        for (Tree.Entry e : ObjectUtils.readTree(cemDir, tree).getEntries()) {
+            Tree.Entry old = before.get(e.getName());
+            if (old != null && old.getId().equals(e.getId())) continue;
+            ObjectId oldId = old != null && old.isTree() == e.isTree() ? old.getId() : null;
+            if (e.isTree()) {
+                diffTree(e.getId(), oldId, visitor);
+            } else {
+                addBlob(e.getId(), oldId, visitor);
+            }
+        }
+    }
+
+    private void addBlob(ObjectId blob, ObjectId parentBlob, Visitor visitor) throws IOException {
+        if (!listed.add(blob)) return;
+        visitor.visit(new Outgoing(blob, parentBlob));
+        if (!withChunks) return;
+        List<ObjectId> chunks = ObjectUtils.chunks(cemDir, blob);
+        if (chunks == null) return;
+        List<ObjectId> parentChunks = parentBlob == null ? null : ObjectUtils.chunks(cemDir, parentBlob);
+        ObjectIdSet had = new ObjectIdSet();
+        for (ObjectId chunk : parentChunks == null ? Collections.<ObjectId>emptyList() : parentChunks) {
+            had.add(chunk);
+        }
+        for (ObjectId chunk : chunks) {
+            if (!had.contains(chunk) && listed.add(chunk)) visitor.visit(new Outgoing(chunk, null));
+        }
+    }
+}
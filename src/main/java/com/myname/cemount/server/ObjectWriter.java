@@ -0,0 +1,166 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.ObjectIdSet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes received objects to disk on its own thread, so the connection keeps
+ * reading the socket while earlier objects are written. The queue is bounded:
+ * when the disk falls behind the reader blocks instead of buffering the whole
+ * push in memory. Only objects up to MAX_IN_MEMORY are queued, bigger ones are
+ * streamed to loose files by the reader itself.
+ *
+ * Queued objects are appended to one pack in progress, so a push costs one file
+ * instead of a create, a write and a rename per object. {@link #finish()} makes
+ * the whole push durable at once: the pack and its index, the streamed loose
+ * files and the directories naming them are synced together, before the ref moves.
+ * Each pack append and the final sync take a {@link DiskSlots} slot.
+ */
+final class ObjectWriter implements AutoCloseable {
+    static final int MAX_IN_MEMORY = 256 * 1024;
+    private static final int QUEUE_SIZE = 64;
+
+    private static final class Write {
+        final ObjectId id;
+        final byte[] compressed;
+
+        Write(ObjectId id, byte[] compressed) {
+            this.id = id;
+            this.compressed = compressed;
+        }
+    }
+
+    private static final Write STOP = new Write(null, null);
+
+    private final Path cemDir;
+    private final DiskSlots disk;
+    private final PackWriter pack;
+    private final BlockingQueue<Write> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Set<Path> streamed = new LinkedHashSet<>();
+    private final ObjectIdSet accepted = new ObjectIdSet();
+    private final Thread thread;
+    private volatile IOException failure;
+
+    ObjectWriter(Path cemDir, String name, DiskSlots disk) throws IOException {
+        this.cemDir = cemDir;
+        this.disk = disk;
+        this.pack = new PackWriter(cemDir);
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Queue an object for the pack, blocking while the queue is full. */
+    void write(ObjectId id, byte[] compressed) throws IOException {
+        checkFailure();
+        accepted.add(id);
+        put(new Write(id, compressed));
+    }
+
+    /**
+     * True if id was queued by {@link #write} in this push: it may not be in the
+     * pack yet, so {@link ObjectUtils#hasObject} cannot see it. Reader thread only.
+     */
+    boolean accepted(ObjectId id) {
+        return accepted.contains(id);
+    }
+
+    /** The reader streamed a big object to this loose file; it is synced with the rest. */
+    void streamed(Path file) {
+        streamed.add(file);
+    }
+
+    /**
+     * Wait until everything queued is written, seal the pack and sync it all, then
+     * throw the first write error if there was one. Once this returns the objects
+     * survive a crash.
+     */
+    void finish() throws IOException {
+        stop();
+        checkFailure();
+        disk.acquire();
+        try {
+            Set<Path> dirs = new LinkedHashSet<>();
+            if (pack.count() > 0) {
+                dirs.add(pack.finish().getParent());
+            }
+            for (Path file : streamed) {
+                ObjectUtils.sync(file);
+                dirs.add(file.getParent());
+            }
+            for (Path dir : dirs) {
+                ObjectUtils.syncDirectory(dir);
+            }
+        } finally {
+            disk.release();
+        }
+    }
+
+    /** Stop the thread and drop the pack, unless it was finished. */
+    @Override
+    public void close() throws IOException {
+        try {
+            stop();
+        } finally {
+            pack.close();
+        }
+    }
+
+    private void stop() throws IOException {
+        if (!thread.isAlive()) return;
+        put(STOP);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing objects");
+        }
+    }
+
+    private void put(Write w) throws IOException {
+        try {
+            queue.put(w);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queueing objects");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) throw new IOException("writing received objects failed: " + e.getMessage(), e);
+    }
+
+    private void run() {
+        while (true) {
+            Write w;
+            try {
+                w = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (w == STOP) return;
+            // after a failure keep draining, so the reader never blocks on a dead writer
+            if (failure != null) continue;
+            try {
+                disk.acquire();
+                try {
+                    // the client may send what is already here, e.g. after a failed push
+                    if (!ObjectUtils.hasObject(cemDir, w.id)) pack.add(w.id, w.compressed);
+                } finally {
+                    disk.release();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
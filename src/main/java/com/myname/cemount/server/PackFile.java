@@ -0,0 +1,264 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A pack is one data file holding the stored (zlib) bytes of many objects back to back,
+ * plus an index with a 256-entry fanout table over the sorted object ids.
+ *
+ * .pack:  "CPCK" | version | count | entries... | sha1(entries)
+ * .idx:   "CIDX" | version | fanout[256] | ids[count*20] | offsets[count*8] | lengths[count*4] | sha1(entries)
+ *
+ * fanout[b] is the number of ids whose first byte is <= b, so the ids starting
+ * with b live in [fanout[b-1], fanout[b]).
+ */
+public class PackFile {
+    static final int    PACK_MAGIC   = 0x4350434b; // CPCK
+    static final int    IDX_MAGIC    = 0x43494458; // CIDX
+    static final int    VERSION      = 1;
+    static final int    HEADER_SIZE  = 12;
+    static final int    ID_LENGTH    = 20;
+    static final String PACK_DIR     = "pack";
+    static final String PACK_EXT     = ".pack";
+    static final String IDX_EXT      = ".idx";
+
+    private static final String OBJECTS = "objects";
+
+    private static final Map<Path, PackList> PACKS = new ConcurrentHashMap<>();
+
+    // packs are mapped in windows so files past 2 GB still fit in int-indexed buffers
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private final Path packPath;
+    private final Path idxPath;
+    private final long packSize;
+    private final MappedByteBuffer[] windows;
+    private final MappedByteBuffer idx;
+    private final int[] fanout = new int[256];
+    private final int count;
+    private final int idsAt;
+    private final int offsetsAt;
+    private final int lengthsAt;
+
+    private PackFile(Path idxPath) throws IOException {
+        String name = idxPath.getFileName().toString();
+        this.idxPath = idxPath;
+        this.packPath = idxPath.resolveSibling(name.substring(0, name.length() - IDX_EXT.length()) + PACK_EXT);
+
+        try (FileChannel idxChannel = FileChannel.open(idxPath, StandardOpenOption.READ)) {
+            long size = idxChannel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("pack index too large: " + idxPath);
+            idx = idxChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (idx.capacity() < 8 + 256 * 4 + ID_LENGTH) throw new IOException("truncated pack index: " + idxPath);
+        if (idx.getInt(0) != IDX_MAGIC) throw new IOException("not a pack index: " + idxPath);
+        int version = idx.getInt(4);
+        if (version != VERSION) throw new IOException("unsupported pack index version " + version + ": " + idxPath);
+        for (int i = 0; i < 256; i++) {
+            fanout[i] = idx.getInt(8 + i * 4);
+            if (fanout[i] < (i == 0 ? 0 : fanout[i - 1])) throw new IOException("corrupt pack index fanout: " + idxPath);
+        }
+        count = fanout[255];
+        // a bad index must fail here, not as an IndexOutOfBoundsException on every later lookup
+        if (idx.capacity() != 8 + 256 * 4 + (long) count * (ID_LENGTH + 8 + 4) + ID_LENGTH) {
+            throw new IOException("truncated pack index: " + idxPath);
+        }
+        idsAt = 8 + 256 * 4;
+        offsetsAt = idsAt + count * ID_LENGTH;
+        lengthsAt = offsetsAt + count * 8;
+
+        // every window is mapped now and the channel closed: a mapping outlives its
+        // channel, so a PackFile a rescan dropped stays readable for threads still using it
+        try (FileChannel channel = FileChannel.open(packPath, StandardOpenOption.READ)) {
+            this.packSize = channel.size();
+            this.windows = new MappedByteBuffer[(int) ((packSize + MAP_WINDOW - 1) / MAP_WINDOW)];
+            for (int w = 0; w < windows.length; w++) {
+                long start = w * MAP_WINDOW;
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, packSize - start));
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Lookup across every pack of a repository                           */
+    /*----------------------------------------------------------------------*/
+
+    /**
+     * A read-only view over the stored bytes of an object, straight out of the mapped pack.
+     * @return the zlib bytes exactly as they were stored loose, or null if no pack has it
+     */
+    public static ByteBuffer open(Path cemDir, ObjectId sha) throws IOException {
+        for (PackFile pack : packs(cemDir)) {
+            int pos = pack.find(sha);
+            if (pos >= 0) return pack.slice(pos);
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #open}, but a large entry comes as a range of the pack file, for
+     * sending with transferTo.
+     */
+    public static StoredObject openStored(Path cemDir, ObjectId sha) throws IOException {
+        for (PackFile pack : packs(cemDir)) {
+            int pos = pack.find(sha);
+            if (pos >= 0) return pack.stored(pos);
+        }
+        return null;
+    }
+
+    public static boolean contains(Path cemDir, ObjectId sha) throws IOException {
+        for (PackFile pack : packs(cemDir)) {
+            if (pack.find(sha) >= 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The packs of a repository. The list is cached per repository and rescanned
+     * whenever the pack directory changes (a repack adds or removes files).
+     */
+    public static List<PackFile> packs(Path cemDir) throws IOException {
+        Path packDir = cemDir.resolve(OBJECTS).resolve(PACK_DIR);
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(packDir);
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        }
+        PackList cached = PACKS.get(packDir);
+        if (cached != null && cached.modified.equals(modified)) {
+            return cached.packs;
+        }
+        synchronized (PackFile.class) {
+            cached = PACKS.get(packDir);
+            if (cached != null && cached.modified.equals(modified)) {
+                return cached.packs;
+            }
+            List<PackFile> packs = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(packDir, "*" + IDX_EXT)) {
+                for (Path idx : ds) {
+                    PackFile reuse = cached == null ? null : cached.find(idx);
+                    packs.add(reuse != null ? reuse : new PackFile(idx));
+                }
+            }
+            // packs that are gone are not closed here, another thread may still be
+            // reading one; its mappings are released once nothing refers to it
+            PackList list = new PackList(modified, Collections.unmodifiableList(packs));
+            PACKS.put(packDir, list);
+            return list.packs;
+        }
+    }
+
+    /*----------------------------------------------------------------------*/
+    /*   Single pack                                                        */
+    /*----------------------------------------------------------------------*/
+
+    /** Position of the id in this pack's index, or -1. */
+    public int find(ObjectId id) {
+        int first = id.firstByte();
+        int lo = first == 0 ? 0 : fanout[first - 1];
+        int hi = fanout[first] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = id.compareTo(idx, idsAt + mid * ID_LENGTH);
+            if (cmp > 0) lo = mid + 1;
+            else if (cmp < 0) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Zero-copy view of the entry at pos. Entries inside one map window are sliced
+     * from it, the rare entry that straddles two windows is copied out of them.
+     */
+    public ByteBuffer slice(int pos) throws IOException {
+        long offset = idx.getLong(offsetsAt + pos * 8);
+        int length = idx.getInt(lengthsAt + pos * 4);
+        if (offset + length > packSize) throw new IOException("truncated pack: " + packPath);
+        int w = (int) (offset / MAP_WINDOW);
+        if (length == 0 || (offset + length - 1) / MAP_WINDOW == w) {
+            ByteBuffer view = windows[w].duplicate();
+            int start = (int) (offset - w * MAP_WINDOW);
+            view.position(start).limit(start + length);
+            return view.slice();
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        for (long at = offset; copy.hasRemaining(); w++) {
+            ByteBuffer view = windows[w].duplicate();
+            view.position((int) (at - w * MAP_WINDOW));
+            if (view.remaining() > copy.remaining()) view.limit(view.position() + copy.remaining());
+            at += view.remaining();
+            copy.put(view);
+        }
+        copy.flip();
+        return copy;
+    }
+
+    /**
+     * The entry at pos as a {@link StoredObject}. A large one gets its own channel on
+     * the pack, which the transfer owns and closes.
+     */
+    public StoredObject stored(int pos) throws IOException {
+        long offset = idx.getLong(offsetsAt + pos * 8);
+        int length = idx.getInt(lengthsAt + pos * 4);
+        if (length >= StoredObject.TRANSFER_THRESHOLD && offset + length <= packSize) {
+            try {
+                return new StoredObject(FileChannel.open(packPath, StandardOpenOption.READ), offset, length);
+            } catch (NoSuchFileException e) {
+                // deleted by a repack, the mapped windows still hold it
+            }
+        }
+        return new StoredObject(slice(pos));
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public ObjectId idAt(int pos) {
+        return ObjectId.fromRaw(idx, idsAt + pos * ID_LENGTH);
+    }
+
+    public Path getPackPath() {
+        return packPath;
+    }
+
+    public Path getIdxPath() {
+        return idxPath;
+    }
+
+    private static class PackList {
+        final FileTime modified;
+        final List<PackFile> packs;
+
+        PackList(FileTime modified, List<PackFile> packs) {
+            this.modified = modified;
+            this.packs = packs;
+        }
+
+        PackFile find(Path idx) {
+            for (PackFile p : packs) {
+                if (p.idxPath.equals(idx)) return p;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.ObjectIdSet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds a new pack (see {@link PackFile} for the layout) one object at a time.
+ * Objects are appended to a temp file as they arrive, only the index entries are kept
+ * in memory. {@link #finish()} writes the index and renames both files into place,
+ * the .idx last so readers never see a pack without its index.
+ */
+public class PackWriter implements AutoCloseable {
+    private final Path packDir;
+    private final Path tmpPack;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final MessageDigest packDigest;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ObjectIdSet seen = new ObjectIdSet();
+    private final byte[] scratch = new byte[64 * 1024];
+    private long offset = PackFile.HEADER_SIZE;
+    private boolean done;
+
+    public PackWriter(Path cemDir) throws IOException {
+        this.packDir = cemDir.resolve("objects").resolve(PackFile.PACK_DIR);
+        Files.createDirectories(packDir);
+        this.tmpPack = Files.createTempFile(packDir, "tmp_pack_", "");
+        this.channel = FileChannel.open(tmpPack, StandardOpenOption.WRITE);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+        this.packDigest = ObjectId.sha1();
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(PackFile.PACK_MAGIC);
+        header.writeInt(PackFile.VERSION);
+        header.writeInt(0); // count, patched in finish()
+    }
+
+    /**
+     * Append the stored (zlib) bytes of an object.
+     * @return false if the pack already holds this id
+     */
+    public boolean add(ObjectId sha, byte[] raw) throws IOException {
+        if (!seen.add(sha)) return false;
+        out.write(raw);
+        packDigest.update(raw);
+        entries.add(new Entry(sha, offset, raw.length));
+        offset += raw.length;
+        return true;
+    }
+
+    /** Append stored bytes straight from a mapped view (repack copies pack to pack this way). */
+    public boolean add(ObjectId sha, ByteBuffer raw) throws IOException {
+        if (raw.hasArray()) {
+            byte[] copy = raw.array();
+            int from = raw.arrayOffset() + raw.position();
+            if (from == 0 && raw.remaining() == copy.length) return add(sha, copy);
+        }
+        if (!seen.add(sha)) return false;
+        int length = raw.remaining();
+        ByteBuffer src = raw.duplicate();
+        while (src.hasRemaining()) {
+            int n = Math.min(scratch.length, src.remaining());
+            src.get(scratch, 0, n);
+            out.write(scratch, 0, n);
+            packDigest.update(scratch, 0, n);
+        }
+        entries.add(new Entry(sha, offset, length));
+        offset += length;
+        return true;
+    }
+
+    public int count() {
+        return entries.size();
+    }
+
+    /**
+     * Seal the pack: patch the count, write the checksum and the index, and move
+     * both files to pack-&lt;name&gt;.pack/.idx.
+     * @return the final .pack path
+     */
+    public Path finish() throws IOException {
+        entries.sort(Comparator.comparing((Entry e) -> e.id));
+
+        byte[] checksum = packDigest.digest();
+        out.write(checksum);
+        out.flush();
+        ByteBuffer count = ByteBuffer.allocate(4).putInt(0, entries.size());
+        channel.write(count, 8);
+        channel.force(true);
+        channel.close();
+
+        MessageDigest nameDigest = ObjectId.sha1();
+        byte[] raw = new byte[ObjectId.RAW_LENGTH];
+        for (Entry e : entries) {
+            e.id.copyRawTo(raw, 0);
+            nameDigest.update(raw);
+        }
+        String name = "pack-" + ObjectId.fromDigest(nameDigest.digest()).name();
+
+        Path tmpIdx = Files.createTempFile(packDir, "tmp_idx_", "");
+        try (FileChannel idxChannel = FileChannel.open(tmpIdx, StandardOpenOption.WRITE);
+             DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(
+                     Channels.newOutputStream(idxChannel), 64 * 1024))) {
+            idx.writeInt(PackFile.IDX_MAGIC);
+            idx.writeInt(PackFile.VERSION);
+            int[] fanout = new int[256];
+            for (Entry e : entries) fanout[e.id.firstByte()]++;
+            int running = 0;
+            for (int i = 0; i < 256; i++) {
+                running += fanout[i];
+                idx.writeInt(running);
+            }
+            for (Entry e : entries) {
+                e.id.copyRawTo(raw, 0);
+                idx.write(raw);
+            }
+            for (Entry e : entries) idx.writeLong(e.offset);
+            for (Entry e : entries) idx.writeInt(e.length);
+            idx.write(checksum);
+            idx.flush();
+            idxChannel.force(true);
+        }
+
+        Path packPath = packDir.resolve(name + PackFile.PACK_EXT);
+        Path idxPath  = packDir.resolve(name + PackFile.IDX_EXT);
+        Files.move(tmpPack, packPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmpIdx, idxPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        done = true;
+        return packPath;
+    }
+
+    /** Drop the pack in progress, if it was not finished. */
+    @Override
+    public void close() throws IOException {
+        if (done) return;
+        done = true;
+        try { out.close(); } catch (IOException ignored) {}
+        Files.deleteIfExists(tmpPack);
+    }
+
+    private static class Entry {
+        final ObjectId id;
+        final long offset;
+        final int length;
+
+        Entry(ObjectId id, long offset, int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
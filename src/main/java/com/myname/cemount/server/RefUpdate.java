@@ -0,0 +1,87 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Moves refs without a window where they are missing or half written. The new id
+ * goes to "&lt;ref&gt;.lock", created exclusively so a writer in another process fails
+ * instead of interleaving, and is synced and renamed over the ref atomically, so
+ * after a crash the ref holds one of the two ids. Readers take no lock: they see
+ * the old id or the new one.
+ *
+ * Within this JVM, writers of the same ref first queue on one of STRIPES locks, so
+ * they wait for each other instead of tripping over the lock file, while refs of
+ * other repositories and branches are updated in parallel.
+ */
+public final class RefUpdate {
+    private static final int    STRIPES  = 64;
+    private static final String LOCK_EXT = ".lock";
+    private static final String HEADS    = "refs/heads";
+
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) LOCKS[i] = new ReentrantLock();
+    }
+
+    private RefUpdate() {
+    }
+
+    /**
+     * Point a branch at newId, but only if it still holds expected.
+     * @param expected the ref's content as read before, "" for a branch without commits
+     * @return false, leaving the ref alone, if it moved in the meantime
+     */
+    public static boolean compareAndSwap(Path cemDir, String branch, String expected, ObjectId newId) throws IOException {
+        if (branch.isEmpty() || branch.startsWith("/") || branch.contains("..") || branch.endsWith(LOCK_EXT)) {
+            throw new IOException("bad branch name: " + branch);
+        }
+        return swap(cemDir.resolve(HEADS).resolve(branch), expected.trim(), newId);
+    }
+
+    /** Point a ref at newId whatever it holds now. */
+    public static void set(Path refPath, ObjectId newId) throws IOException {
+        swap(refPath, null, newId);
+    }
+
+    private static boolean swap(Path ref, String expected, ObjectId newId) throws IOException {
+        ref = ref.toAbsolutePath().normalize();
+        Path lock = ref.resolveSibling(ref.getFileName() + LOCK_EXT);
+        ReentrantLock stripe = LOCKS[Math.floorMod(ref.hashCode(), STRIPES)];
+        stripe.lock();
+        try {
+            Files.createDirectories(ref.getParent());
+            try (FileChannel ch = FileChannel.open(lock, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ch.write(ByteBuffer.wrap((newId.name() + "\n").getBytes(UTF_8)));
+                ch.force(false);
+            } catch (FileAlreadyExistsException e) {
+                throw new IOException("ref is locked by another writer: " + lock);
+            }
+            try {
+                if (expected != null) {
+                    String current = Files.exists(ref) ? Files.readString(ref, UTF_8).trim() : "";
+                    if (!current.equals(expected)) return false;
+                }
+                Files.move(lock, ref, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                ObjectUtils.syncDirectory(ref.getParent());
+                return true;
+            } finally {
+                Files.deleteIfExists(lock);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+}
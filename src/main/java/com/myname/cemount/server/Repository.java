@@ -0,0 +1,40 @@
+package com.myname.cemount.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * One repository of the server, handed out by {@link RepositoryManager} and kept
+ * for the life of the server. It remembers the repository's commit graph, so a
+ * command reaches it without going through the graph table every other
+ * repository uses too.
+ */
+public final class Repository {
+    private final String name;
+    private final Path cemDir;
+    private volatile CommitGraph graph;
+
+    Repository(String name, Path cemDir) {
+        this.name = name;
+        this.cemDir = cemDir;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The repository's .cemount directory. */
+    public Path getCemDir() {
+        return cemDir;
+    }
+
+    /** The commit graph, reloaded when another process changed it. */
+    public CommitGraph graph() throws IOException {
+        CommitGraph g = graph;
+        if (g == null || !g.isCurrent()) {
+            g = CommitGraph.of(cemDir);
+            graph = g;
+        }
+        return g;
+    }
+}
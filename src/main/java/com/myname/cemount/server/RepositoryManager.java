@@ -2,24 +2,31 @@ package com.myname.cemount.server;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 /**
- * Reads a config file with lines:
+ * The repositories of a server, by name. Reads a config file with lines:
  *    repoName=/absolute/path/to/bare-repo.git
- * and turns it into a Map<String,Path>.
+ * and finds the rest under rootDir: a repository made before a restart is picked
+ * up the first time a client names it, or for all of them by one parallel scan
+ * the first time the whole list is wanted.
+ *
+ * Lookups of a known repository are one ConcurrentHashMap read and take no lock;
+ * only creating a repository waits, and only for the same name.
  */
 public class RepositoryManager {
-    private final Map<String, Path> repos = new HashMap<>();
+    private final ConcurrentHashMap<String, Repository> repos = new ConcurrentHashMap<>();
     private final Path rootDir;
     private final String defaultBranch;
+    private volatile boolean scanned;
     private static final String CEM_DIR = ".cemount";
     private static final String ECHO_DIR      = "ECHO";
     /**
@@ -45,10 +52,10 @@ public class RepositoryManager {
                     }
                     String name = parts[0].trim();
                     Path path = Paths.get(parts[1].trim()).toAbsolutePath().normalize();
-                    if (!Files.isDirectory(path.resolve(".cemount"))) {
+                    if (!Files.isDirectory(path.resolve(CEM_DIR))) {
                         throw new IOException("Not a CEM repo: " + path);
                     }
-                    repos.put(name, path);
+                    repos.put(name, new Repository(name, path.resolve(CEM_DIR)));
                 }
             }
         }
@@ -61,35 +68,89 @@ public class RepositoryManager {
         this(null, rootDir, defaultBranch);
     }
 
-    public synchronized Path get(String repoName){
+    public Path get(String repoName){
         return getBareRepo(repoName);
     }
 
     public Path getBareRepo(String repoName){
-        Path p = repos.get(repoName);
-        if(p == null){
+        return open(repoName).getCemDir();
+    }
+
+    /** An existing repository, found on disk if this server has not seen it yet. */
+    public Repository open(String repoName) {
+        Repository repo = repos.get(repoName);
+        if (repo == null) repo = discover(repoName);
+        if (repo == null) {
             throw new IllegalArgumentException("No such repository: " + repoName);
         }
-        return p;
+        return repo;
     }
 
-    public synchronized void create(String repoName) throws IOException {
+    /** Create a repository under rootDir, or return it if it exists. */
+    public Repository create(String repoName) throws IOException {
+        checkName(repoName);
         Path cemDir = rootDir.resolve(repoName).resolve(CEM_DIR);
-        initIfMissing(cemDir, defaultBranch, repoName);
-        repos.put(repoName, cemDir);
+        try {
+            // two clients creating one name: the second waits and gets the first one's
+            return repos.computeIfAbsent(repoName, name -> {
+                try {
+                    initIfMissing(cemDir, defaultBranch, name);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return new Repository(name, cemDir);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     /** Return the set of all repo names. */
-    public Set<String> listRepoNames() {
+    public Set<String> listRepoNames() throws IOException {
+        if (!scanned) scan();
         return Collections.unmodifiableSet(repos.keySet());
     }
 
-    public synchronized Path getOrCreate(String repoName) throws IOException {
-        if(repos.containsKey(repoName)){
-            return repos.get(repoName);
+    public Path getOrCreate(String repoName) throws IOException {
+        return openOrCreate(repoName).getCemDir();
+    }
+
+    public Repository openOrCreate(String repoName) throws IOException {
+        Repository repo = repos.get(repoName);
+        return repo != null ? repo : create(repoName);
+    }
+
+    private Repository discover(String repoName) {
+        if (!isValidName(repoName)) return null;
+        Path cemDir = rootDir.resolve(repoName).resolve(CEM_DIR);
+        if (!Files.isDirectory(cemDir)) return null;
+        return repos.computeIfAbsent(repoName, name -> new Repository(name, cemDir));
+    }
+
+    /** Register every repository under rootDir, checking the directories in parallel. */
+    private void scan() throws IOException {
+        try (Stream<Path> dirs = Files.list(rootDir)) {
+            dirs.parallel()
+                    .filter(dir -> isValidName(dir.getFileName().toString()))
+                    .filter(dir -> Files.isDirectory(dir.resolve(CEM_DIR)))
+                    .forEach(dir -> {
+                        String name = dir.getFileName().toString();
+                        repos.putIfAbsent(name, new Repository(name, dir.resolve(CEM_DIR)));
+                    });
+        }
+        scanned = true;
+    }
+
+    private static void checkName(String repoName) throws IOException {
+        if (!isValidName(repoName)) {
+            throw new IOException("bad repository name: " + repoName);
         }
-        create(repoName);
-        return repos.get(repoName);
+    }
+
+    /** One plain directory name: the name a client sends must not reach outside rootDir. */
+    private static boolean isValidName(String repoName) {
+        return !repoName.isEmpty() && !repoName.startsWith(".")
+                && repoName.indexOf('/') < 0 && repoName.indexOf('\\') < 0;
     }
 
     public static void initIfMissing(Path cemDir, String defaultBranch, String repoName) throws IOException {
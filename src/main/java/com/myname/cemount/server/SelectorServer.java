@@ -0,0 +1,314 @@
+package com.myname.cemount.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The network core of the server. One thread owns a Selector: it accepts
+ * connections and reads each one's opening without blocking, which is a state
+ * machine per connection:
+ *
+ *   OPENING  first line: "HELLO &lt;repo&gt; 2" is answered and moves to FRAME,
+ *            anything else is a v1 command
+ *   FRAME    waiting for a v2 command frame
+ *   LINE     waiting for a v1 command line
+ *
+ * Only a connection with a whole command is handed to the I/O pool, which runs
+ * the command (disk and transfer) on a blocking {@link Transport}. When the command
+ * leaves the connection open it comes back here to wait for the next one. An idle
+ * client, or one slow to send its command, holds no thread.
+ */
+public final class SelectorServer implements Closeable {
+    private static final int READ_BUFFER = 8 * 1024;
+    private static final int MAX_OPENING = 64 * 1024;
+    private static final int HEADER      = 5;
+
+    /** Runs commands for the I/O pool. */
+    public interface Handler {
+        /** Called on the selector thread for every new connection. */
+        default void accepted(Socket socket) { }
+
+        /**
+         * Run one command with blocking I/O.
+         * @return false if the connection should be closed afterwards
+         */
+        boolean handle(Transport transport, String command) throws IOException;
+    }
+
+    private enum State { OPENING, FRAME, LINE }
+
+    private final class Connection {
+        final SocketChannel channel;
+        State state = State.OPENING;
+        int version = 1;
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        ByteBuffer reply;
+        String command;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService ioPool;
+    private final Handler handler;
+    private final List<Connection> dispatching = new ArrayList<>();
+    private final Queue<Connection> returning = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public SelectorServer(InetSocketAddress address, ExecutorService ioPool, Handler handler) throws IOException {
+        this.ioPool = ioPool;
+        this.handler = handler;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            server.bind(address, 50);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly(server);
+            closeQuietly(selector);
+            throw e;
+        }
+    }
+
+    /** Serve until {@link #close()}. */
+    public void run() throws IOException {
+        try {
+            loop();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key.channel());
+            }
+            closeQuietly(selector);
+        }
+    }
+
+    /** Stop accepting; connections already running a command finish it. */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void loop() throws IOException {
+        while (running) {
+            if (dispatching.isEmpty()) {
+                selector.select();
+            } else {
+                // deregisters the cancelled keys, so those channels may block again
+                selector.selectNow();
+                for (Connection c : dispatching) start(c);
+                dispatching.clear();
+            }
+            Connection back;
+            while ((back = returning.poll()) != null) {
+                back.channel.register(selector, SelectionKey.OP_READ, back);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isWritable()) {
+                        writeReply(key, (Connection) key.attachment());
+                    } else if (key.isReadable()) {
+                        read(key, (Connection) key.attachment());
+                    }
+                } catch (IOException e) {
+                    if (key.channel() == server) {
+                        // e.g. out of file descriptors: keep listening, the backlog waits
+                        System.err.println("cem server: accept failed: " + e.getMessage());
+                    } else {
+                        drop(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+            handler.accepted(channel.socket());
+        }
+    }
+
+    private void read(SelectionKey key, Connection c) throws IOException {
+        if (!c.in.hasRemaining()) {
+            if (c.in.capacity() >= MAX_OPENING) throw new IOException("opening too long");
+            c.in = grow(c.in, c.in.capacity() * 2);
+        }
+        if (c.channel.read(c.in) < 0) {
+            drop(key);
+            return;
+        }
+        parse(key, c);
+    }
+
+    private void parse(SelectionKey key, Connection c) throws IOException {
+        switch (c.state) {
+            case OPENING: {
+                String line = takeLine(c.in);
+                if (line == null) return;
+                String[] parts = line.trim().split(" ");
+                if (parts[0].equals(Transport.HELLO) && parts.length == 3
+                        && parts[2].equals(String.valueOf(Transport.PROTOCOL_VERSION))) {
+                    c.version = Transport.PROTOCOL_VERSION;
+                    c.state = State.FRAME;
+                    c.reply = ByteBuffer.wrap((Transport.HELLO + " " + Transport.PROTOCOL_VERSION + "\n").getBytes(UTF_8));
+                    writeReply(key, c);
+                    return;
+                }
+                c.state = State.LINE;
+                dispatch(key, c, line);
+                return;
+            }
+            case LINE: {
+                String line = takeLine(c.in);
+                if (line != null) dispatch(key, c, line);
+                return;
+            }
+            case FRAME: {
+                String text = takeFrame(c);
+                if (text != null) dispatch(key, c, text);
+                return;
+            }
+        }
+    }
+
+    private void writeReply(SelectionKey key, Connection c) throws IOException {
+        c.channel.write(c.reply);
+        if (c.reply.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        c.reply = null;
+        key.interestOps(SelectionKey.OP_READ);
+        parse(key, c);
+    }
+
+    /** Take the connection off the selector; the I/O pool gets it once the key is gone. */
+    private void dispatch(SelectionKey key, Connection c, String command) {
+        key.cancel();
+        c.command = command;
+        dispatching.add(c);
+    }
+
+    private void start(Connection c) {
+        try {
+            c.channel.configureBlocking(true);
+            ioPool.execute(() -> serve(c));
+        } catch (IOException | RejectedExecutionException e) {
+            closeQuietly(c.channel);
+        }
+    }
+
+    /** On an I/O pool thread: run commands while the client has more buffered, then hand back. */
+    private void serve(Connection c) {
+        boolean open = false;
+        try {
+            c.in.flip();
+            byte[] ahead = new byte[c.in.remaining()];
+            c.in.get(ahead);
+            c.in.clear();
+            Transport transport = Transport.open(c.channel.socket(), c.version, ahead);
+            String command = c.command;
+            while (true) {
+                open = handler.handle(transport, command);
+                if (!open || transport.idle()) break;
+                command = transport.readText();
+                if (command == null) {
+                    open = false;
+                    break;
+                }
+            }
+            if (open) {
+                c.state = c.version >= Transport.PROTOCOL_VERSION ? State.FRAME : State.LINE;
+                c.command = null;
+                c.channel.configureBlocking(false);
+                returning.add(c);
+                selector.wakeup();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            open = false;
+        } finally {
+            if (!open) closeQuietly(c.channel);
+        }
+    }
+
+    private void drop(SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    private static String takeLine(ByteBuffer in) {
+        for (int i = 0; i < in.position(); i++) {
+            if (in.get(i) == '\n') {
+                byte[] line = new byte[i];
+                in.flip();
+                in.get(line);
+                in.get();
+                in.compact();
+                return new String(line, UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static String takeFrame(Connection c) throws IOException {
+        ByteBuffer in = c.in;
+        if (in.position() < HEADER) return null;
+        int type = in.get(0);
+        int len = in.getInt(1);
+        if (type != FrameTransport.TEXT || len < 0 || len > MAX_OPENING - HEADER) {
+            throw new IOException("expected a command frame");
+        }
+        if (in.position() < HEADER + len) {
+            if (in.capacity() < HEADER + len) c.in = grow(in, HEADER + len);
+            return null;
+        }
+        byte[] text = new byte[len];
+        in.flip();
+        in.position(HEADER);
+        in.get(text);
+        in.compact();
+        return new String(text, UTF_8);
+    }
+
+    private static ByteBuffer grow(ByteBuffer in, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        in.flip();
+        bigger.put(in);
+        return bigger;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try { c.close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,85 @@
+package com.myname.cemount.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The stored (zlib) bytes of one object, either already on the heap (small loose
+ * files, small pack entries) or as a range of an open file: a whole loose file or
+ * one entry of a pack. A file range is sent to a socket channel with transferTo,
+ * so the kernel copies it from the page cache and it never passes through the heap.
+ */
+public final class StoredObject implements Closeable {
+    /** Below this, one copy into the socket buffer costs less than the flush transferTo needs. */
+    static final int TRANSFER_THRESHOLD = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long position;
+    private final int length;
+    private ByteBuffer buffer;
+
+    StoredObject(ByteBuffer buffer) {
+        this.channel = null;
+        this.position = 0;
+        this.length = buffer.remaining();
+        this.buffer = buffer;
+    }
+
+    /** A range of a file; the channel is owned and closed with this object. */
+    StoredObject(FileChannel channel, long position, int length) {
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** All the bytes as a buffer, mapped if they are still in the file. */
+    public ByteBuffer buffer() throws IOException {
+        if (buffer == null) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+        return buffer.duplicate();
+    }
+
+    /** At most max bytes from the start, read without mapping the rest. */
+    public ByteBuffer head(int max) throws IOException {
+        if (buffer != null) return buffer.duplicate();
+        ByteBuffer head = ByteBuffer.allocate(Math.min(max, length));
+        while (head.hasRemaining() && channel.read(head, position + head.position()) >= 0) { }
+        head.flip();
+        return head;
+    }
+
+    /**
+     * Write the bytes to out. When they are still in the file and the socket has a
+     * channel, out is flushed and the range goes to the socket with transferTo.
+     */
+    public void writeTo(OutputStream out, Socket socket) throws IOException {
+        SocketChannel target = socket == null ? null : socket.getChannel();
+        if (buffer != null || target == null) {
+            ObjectUtils.writeBuffer(buffer(), out);
+            return;
+        }
+        out.flush();
+        long pos = position;
+        long end = position + length;
+        while (pos < end) {
+            long n = channel.transferTo(pos, end - pos, target);
+            if (n <= 0) throw new IOException("transferTo made no progress");
+            pos += n;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
@@ -0,0 +1,133 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * One connection between a client command and the server, seen as a sequence of
+ * messages: short texts (commands, refs, counts), object ids, and length-prefixed
+ * data. Push, fetch and pull are written once against this and run over either
+ * wire format:
+ *
+ *   v1 {@link LineTransport}:  text and ids as lines, data as "&lt;len&gt;\n" + bytes
+ *   v2 {@link FrameTransport}: typed binary frames, type (1) | length (4) | payload
+ *
+ * A v2 client opens with the line "HELLO &lt;repo&gt; 2". A v2 server answers "HELLO 2"
+ * and both switch to frames; an older server answers with an error line and the
+ * client stays on v1 on the same socket. A v1 client just sends its command, so
+ * the server stays on v1 for it.
+ *
+ * Writes are buffered; call {@link #flush()} before waiting for the peer.
+ */
+public interface Transport extends Closeable {
+    int    PROTOCOL_VERSION = 2;
+    String HELLO            = "HELLO";
+    int    BUFFER_SIZE      = 64 * 1024;
+
+    int version();
+
+    void writeText(String text) throws IOException;
+
+    /** The next text message, or null when the peer closed the connection. */
+    String readText() throws IOException;
+
+    void writeId(ObjectId id) throws IOException;
+
+    ObjectId readId() throws IOException;
+
+    /** End of a list of ids sent with {@link #writeId}. */
+    void writeEnd() throws IOException;
+
+    /** The next id of a list, or null at its end. */
+    ObjectId readIdOrEnd() throws IOException;
+
+    void writeData(ByteBuffer data) throws IOException;
+
+    default void writeData(byte[] data) throws IOException {
+        writeData(ByteBuffer.wrap(data));
+    }
+
+    /** Send a stored object; a large one goes from its file to the socket with transferTo. */
+    void writeData(StoredObject data) throws IOException;
+
+    byte[] readData() throws IOException;
+
+    /** Stream the next data message into a file, through a temp file and a rename. */
+    void readData(Path target) throws IOException;
+
+    /**
+     * Read the next data message into memory if it is at most max bytes, else
+     * stream it into target and return null.
+     */
+    byte[] readData(Path target, int max) throws IOException;
+
+    void flush() throws IOException;
+
+    /** True if nothing the peer sent is waiting in this transport's buffers. */
+    boolean idle() throws IOException;
+
+    /**
+     * Hand over the socket without closing it, for {@link ConnectionPool}. The
+     * transport is unusable afterwards and close() no longer closes the socket.
+     */
+    Socket detach();
+
+    /**
+     * Connect to a server and negotiate the protocol, or reuse a connection parked
+     * in {@link ConnectionPool}. -Dcem.protocol=1 skips the handshake and talks v1.
+     */
+    static Transport connect(String host, int port, String repo) throws IOException {
+        Socket pooled = ConnectionPool.take(host, port);
+        if (pooled != null) {
+            return new FrameTransport(pooled, new BufferedInputStream(pooled.getInputStream(), BUFFER_SIZE),
+                    new BufferedOutputStream(pooled.getOutputStream(), BUFFER_SIZE));
+        }
+        // a channel-backed socket, so stored objects can be sent with transferTo
+        Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            if (Integer.getInteger("cem.protocol", PROTOCOL_VERSION) < PROTOCOL_VERSION) {
+                return new LineTransport(socket, in, out, null);
+            }
+            out.write((HELLO + " " + repo + " " + PROTOCOL_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String reply = ObjectUtils.readLine(in).trim();
+            if (reply.equals(HELLO + " " + PROTOCOL_VERSION)) {
+                return new FrameTransport(socket, in, out);
+            }
+            // an old server: it answered "ERROR Unknown command" and waits for the next line
+            return new LineTransport(socket, in, out, null);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Server side of {@link #connect}, once {@link SelectorServer} has done the
+     * handshake. ahead holds what it read past the client's first command.
+     */
+    static Transport open(Socket socket, int version, byte[] ahead) throws IOException {
+        InputStream raw = socket.getInputStream();
+        if (ahead.length > 0) raw = new SequenceInputStream(new ByteArrayInputStream(ahead), raw);
+        BufferedInputStream in = new BufferedInputStream(raw, BUFFER_SIZE);
+        BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        if (version >= PROTOCOL_VERSION) return new FrameTransport(socket, in, out);
+        return new LineTransport(socket, in, out, null);
+    }
+}
@@ -1,11 +1,14 @@
 package com.myname.cemount.server;
 
+import com.myname.cemount.core.ObjectId;
+import com.myname.cemount.core.Pair;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.List;
-import java.util.stream.Collectors;
+import java.util.zip.InflaterInputStream;
 
 import static com.myname.cemount.server.ObjectUtils.zlibDecompress;
 
@@ -23,8 +26,13 @@ public class ViewCommand {
         try {
             Files.walk(objectsRoot)
                 .filter(Files::isRegularFile)
+                // packs are read through ObjectUtils, not walked
+                .filter(path -> !path.getParent().getFileName().toString().equals("pack"))
+                .filter(path -> !path.getFileName().toString().contains(".tmp"))
                 .forEach(path -> {
                     try {
+                        // only commits are printed: peek at the type before inflating anything big
+                        if (!"commit".equals(readType(path))) return;
                         byte[] compressed = Files.readAllBytes(path);
                         byte[] fullBlob   = zlibDecompress(compressed);
 
@@ -43,30 +51,16 @@ public class ViewCommand {
                             String commitText = new String(payload, StandardCharsets.UTF_8);
                             System.out.println(commitText);
                             System.out.println("-- extracting referenced blobs --");
-                            // look for lines "SHA filename"
-                            List<String> lines = commitText.lines().collect(Collectors.toList());
-                            for (String line : lines) {
-                                String[] parts = line.trim().split(" ", 2);
-                                if (parts.length == 2 && parts[0].matches("[0-9a-f]{40}")) {
-                                    String sha = parts[0];
-                                    // locate blob file under objectsRoot/aa/bb…
-                                    Path blobPath = objectsRoot
-                                            .resolve(sha.substring(0, 2))
-                                            .resolve(sha.substring(2));
-                                    if (Files.isRegularFile(blobPath)) {
-                                        byte[] bcmp = Files.readAllBytes(blobPath);
-                                        byte[] bfull = zlibDecompress(bcmp);
-                                        // strip its header
-                                        int j = 0;
-                                        while (bfull[j] != 0) j++;
-                                        String content = new String(
-                                                bfull, j + 1, bfull.length - j - 1,
-                                                StandardCharsets.UTF_8
-                                        );
-                                        System.out.printf(">>> %s contents:%n%s%n", parts[1], content);
-                                    } else {
-                                        System.err.println("Missing blob " + sha);
-                                    }
+                            Path cemDir = objectsRoot.getParent();
+                            for (Pair file : ObjectUtils.getShaFromCommit(cemDir, ObjectId.hash(fullBlob))) {
+                                ObjectId sha = file.getSha();
+                                // loose under objectsRoot/aa/bb… or in a pack
+                                if (ObjectUtils.hasObject(cemDir, sha)) {
+                                    System.out.printf(">>> %s contents:%n", file.getFileName());
+                                    ObjectUtils.copyBlob(cemDir, sha, System.out);
+                                    System.out.println();
+                                } else {
+                                    System.err.println("Missing blob " + sha);
                                 }
                             }
                             System.out.println();
@@ -80,4 +74,13 @@ public class ViewCommand {
         }
     }
 
+    private static String readType(Path path) throws IOException {
+        try (InputStream in = new InflaterInputStream(Files.newInputStream(path))) {
+            StringBuilder type = new StringBuilder();
+            int b;
+            while ((b = in.read()) > 0 && b != ' ') type.append((char) b);
+            return type.toString();
+        }
+    }
+
 }
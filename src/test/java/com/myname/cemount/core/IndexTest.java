@@ -0,0 +1,156 @@
+package com.myname.cemount.core;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The CIND index file: round trips, the racy-entry rule (an entry whose mtime is
+ * not older than the index is rehashed), and corrupt files being refused.
+ */
+public class IndexTest extends TestCase {
+    private static final long MTIME = TimeUnit.SECONDS.toNanos(1_700_000_000L) + 123_456_789L;
+
+    private Path cemDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        cemDir = Files.createTempDirectory("cem-index-test").resolve(".cemount");
+        Files.createDirectories(cemDir);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(cemDir.getParent())) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        Index index = Index.load(cemDir);
+        assertEquals(0, index.size());
+        index.put(index.create("src/b.txt", id("b"), new Index.Stat(10, MTIME, 7)));
+        index.put(index.create("a.txt", id("a"), new Index.Stat(0, MTIME, 0)));
+        index.put(index.create("été.txt", id("e"), new Index.Stat(3, MTIME, -1)));
+        index.write();
+
+        Index loaded = Index.load(cemDir);
+        assertEquals(3, loaded.size());
+        Iterator<Index.Entry> it = loaded.entries().iterator();
+        assertEquals("a.txt", it.next().getPath());
+        assertEquals("src/b.txt", it.next().getPath());
+        assertEquals("été.txt", it.next().getPath());
+        assertEquals(id("b"), loaded.get("src/b.txt").getId());
+        assertNotNull(loaded.getUnchanged("src/b.txt", new Index.Stat(10, MTIME, 7)));
+        assertNotNull(loaded.getUnchanged("été.txt", new Index.Stat(3, MTIME, -1)));
+        assertNull(loaded.getUnchanged("src/b.txt", new Index.Stat(11, MTIME, 7)));
+        assertNull(loaded.getUnchanged("src/b.txt", new Index.Stat(10, MTIME + 1, 7)));
+        assertNull(loaded.getUnchanged("src/b.txt", new Index.Stat(10, MTIME, 8)));
+        assertNull(loaded.getUnchanged("missing.txt", new Index.Stat(10, MTIME, 7)));
+    }
+
+    public void testEntryAsNewAsTheIndexIsRacy() throws IOException {
+        // whole seconds, so every file system keeps the mtime exactly
+        long tick = TimeUnit.SECONDS.toNanos(1_700_000_000L);
+        Index.Stat stat = new Index.Stat(5, tick, 1);
+        Index index = Index.load(cemDir);
+        index.put(index.create("racy.txt", id("r"), stat));
+        index.write();
+        Path file = cemDir.resolve("index");
+
+        // same tick: the file may have changed again after it was hashed
+        Files.setLastModifiedTime(file, FileTime.from(tick, TimeUnit.NANOSECONDS));
+        assertNull(Index.load(cemDir).getUnchanged("racy.txt", stat));
+
+        Files.setLastModifiedTime(file, FileTime.from(tick - 1_000_000_000L, TimeUnit.NANOSECONDS));
+        assertNull(Index.load(cemDir).getUnchanged("racy.txt", stat));
+
+        Files.setLastModifiedTime(file, FileTime.from(tick + 1_000_000_000L, TimeUnit.NANOSECONDS));
+        assertNotNull(Index.load(cemDir).getUnchanged("racy.txt", stat));
+    }
+
+    public void testEntryAsNewAsTheLastWriteIsRacy() throws IOException {
+        Index index = Index.load(cemDir);
+        index.write();
+        long written = Files.getLastModifiedTime(cemDir.resolve("index")).to(TimeUnit.NANOSECONDS);
+        Index.Stat stat = new Index.Stat(5, written, 1);
+        index.put(index.create("new.txt", id("n"), stat));
+        assertNull(index.getUnchanged("new.txt", stat));
+    }
+
+    public void testMigratedIndexTxt() throws IOException {
+        Files.write(cemDir.resolve("index.txt"), (id("a").name() + " a.txt\nnot an entry\n").getBytes());
+        Index index = Index.load(cemDir);
+        assertEquals(1, index.size());
+        assertEquals(id("a"), index.get("a.txt").getId());
+        // no stat data came along, so the file is hashed again
+        assertNull(index.getUnchanged("a.txt", new Index.Stat(-1, 0, 0)));
+        index.write();
+        assertFalse(Files.exists(cemDir.resolve("index.txt")));
+        assertEquals(id("a"), Index.load(cemDir).get("a.txt").getId());
+    }
+
+    public void testChecksumMismatchIsRejected() throws IOException {
+        byte[] data = written();
+        data[20] ^= 1;
+        assertCorrupt(data, "checksum mismatch");
+    }
+
+    public void testBadMagicIsRejected() throws IOException {
+        byte[] data = written();
+        data[0] = 'X';
+        assertCorrupt(resign(data), "not an index file");
+    }
+
+    public void testShortFileIsRejected() throws IOException {
+        assertCorrupt(new byte[10], "too short");
+    }
+
+    public void testCountPastTheEntriesIsRejected() throws IOException {
+        byte[] data = written();
+        ByteBuffer.wrap(data).putInt(8, 1000);
+        assertCorrupt(resign(data), "truncated");
+    }
+
+    private void assertCorrupt(byte[] data, String message) throws IOException {
+        Files.write(cemDir.resolve("index"), data);
+        try {
+            Index.load(cemDir);
+            fail("a corrupt index must not load: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    /** Bytes of an index with two entries. */
+    private byte[] written() throws IOException {
+        Index index = Index.load(cemDir);
+        index.put(index.create("a.txt", id("a"), new Index.Stat(1, MTIME, 2)));
+        index.put(index.create("b.txt", id("b"), new Index.Stat(3, MTIME, 4)));
+        index.write();
+        return Files.readAllBytes(cemDir.resolve("index"));
+    }
+
+    /** The data with its trailing checksum recomputed. */
+    private static byte[] resign(byte[] data) {
+        MessageDigest md = ObjectId.sha1();
+        md.update(data, 0, data.length - 20);
+        byte[] out = Arrays.copyOf(data, data.length);
+        System.arraycopy(md.digest(), 0, out, data.length - 20, 20);
+        return out;
+    }
+
+    private static ObjectId id(String s) {
+        return ObjectId.hash(s.getBytes());
+    }
+}
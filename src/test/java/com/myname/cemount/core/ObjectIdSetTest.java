@@ -0,0 +1,120 @@
+package com.myname.cemount.core;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link ObjectIdSet} and {@link ObjectIdMap} probing: ids that share a hash
+ * bucket, probes that wrap past the last slot, and growth with many ids.
+ */
+public class ObjectIdSetTest extends TestCase {
+
+    public void testSetAddAndContains() {
+        ObjectIdSet set = new ObjectIdSet();
+        assertTrue(set.isEmpty());
+        ObjectId id = ObjectId.hash("a".getBytes());
+        assertFalse(set.contains(id));
+        assertTrue(set.add(id));
+        assertFalse(set.add(ObjectId.fromHex(id.name())));
+        assertTrue(set.contains(id));
+        assertEquals(1, set.size());
+        assertFalse(set.contains(ObjectId.hash("b".getBytes())));
+    }
+
+    public void testSetCollidingIds() {
+        ObjectIdSet set = new ObjectIdSet(4);
+        // hashCode is the second word: all of these probe from the same slot
+        for (int i = 0; i < 6; i++) {
+            assertTrue(set.add(colliding(7, i)));
+        }
+        for (int i = 0; i < 6; i++) {
+            assertTrue(set.contains(colliding(7, i)));
+            assertFalse(set.add(colliding(7, i)));
+        }
+        assertFalse(set.contains(colliding(7, 6)));
+        assertEquals(6, set.size());
+    }
+
+    public void testSetProbeWrapsAround() {
+        ObjectIdSet set = new ObjectIdSet(8);
+        // 16 slots: a run that starts in the last one continues at slot 0
+        for (int i = 0; i < 5; i++) {
+            assertTrue(set.add(colliding(15, i)));
+        }
+        assertTrue(set.add(colliding(0, 0)));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(set.contains(colliding(15, i)));
+        }
+        assertTrue(set.contains(colliding(0, 0)));
+        assertFalse(set.contains(colliding(0, 1)));
+        assertFalse(set.contains(colliding(15, 5)));
+    }
+
+    public void testSetGrowth() {
+        ObjectIdSet set = new ObjectIdSet();
+        Set<ObjectId> expected = new HashSet<>();
+        for (int i = 0; i < 20000; i++) {
+            // every 8th id collides with the one before
+            ObjectId id = i % 8 == 0 ? colliding(i - 1, i) : ObjectId.hash(Integer.toString(i).getBytes());
+            assertEquals(expected.add(id), set.add(id));
+        }
+        assertEquals(expected.size(), set.size());
+        for (ObjectId id : expected) {
+            assertTrue(set.contains(id));
+        }
+        Set<ObjectId> seen = new HashSet<>();
+        set.forEach(seen::add);
+        assertEquals(expected, seen);
+        assertFalse(set.contains(ObjectId.hash("absent".getBytes())));
+    }
+
+    public void testMapPutAndGet() {
+        ObjectIdMap<String> map = new ObjectIdMap<>();
+        ObjectId a = colliding(3, 1);
+        ObjectId b = colliding(3, 2);
+        assertNull(map.get(a));
+        assertNull(map.put(a, "a"));
+        assertNull(map.put(b, "b"));
+        assertEquals("a", map.put(a, "a2"));
+        assertEquals("a2", map.get(a));
+        assertEquals("b", map.get(b));
+        assertTrue(map.containsKey(b));
+        assertFalse(map.containsKey(colliding(3, 3)));
+        assertNull(map.get(colliding(3, 3)));
+        assertEquals(2, map.size());
+    }
+
+    public void testMapRejectsNullValue() {
+        try {
+            new ObjectIdMap<String>().put(colliding(1, 1), null);
+            fail("null values mark free slots and must be rejected");
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    public void testMapGrowth() {
+        ObjectIdMap<Integer> map = new ObjectIdMap<>(2);
+        Map<ObjectId, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            ObjectId id = i % 5 == 0 ? colliding(42, i) : ObjectId.hash(Integer.toString(i).getBytes());
+            expected.put(id, i);
+            map.put(id, i);
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<ObjectId, Integer> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        Map<ObjectId, Integer> seen = new HashMap<>();
+        map.forEach(seen::put);
+        assertEquals(expected, seen);
+    }
+
+    /** An id with the given hash code, told apart by its last word. */
+    private static ObjectId colliding(int hash, int n) {
+        return new ObjectId(0x12345678, hash, 0, 0, n);
+    }
+}
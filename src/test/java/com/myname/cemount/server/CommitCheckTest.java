@@ -0,0 +1,109 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Only commits reach the commit-graph: a blob named as a commit, loose or packed,
+ * is refused by {@link ObjectUtils#isCommit} and {@link ObjectUtils#readCommitText}
+ * instead of being parsed into a bogus commit.
+ */
+public class CommitCheckTest extends TestCase {
+    private Path cemDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        cemDir = Files.createTempDirectory("cem-commit-test").resolve(".cemount");
+        Files.createDirectories(cemDir.resolve("objects"));
+        Files.createDirectories(cemDir.resolve("ECHO"));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(cemDir.getParent())) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testLooseCommit() throws IOException {
+        ObjectId commit = storeLooseCommit("timestamp: 1700000000\nmessage: first\n");
+        assertTrue(ObjectUtils.isCommit(cemDir, commit));
+        assertTrue(ObjectUtils.readCommitText(cemDir, commit).contains("message: first"));
+        assertEquals(1700000000L, ObjectUtils.readCommit(cemDir, commit).getTimestamp());
+    }
+
+    public void testPackedCommit() throws IOException {
+        byte[] full = object("commit", "timestamp: 1700000000\nmessage: packed\n");
+        ObjectId commit = ObjectId.hash(full);
+        pack(commit, full);
+        assertTrue(ObjectUtils.isCommit(cemDir, commit));
+        assertTrue(ObjectUtils.readCommitText(cemDir, commit).contains("message: packed"));
+    }
+
+    public void testPackedBlobIsNotACommit() throws IOException {
+        ObjectId parent = storeLooseCommit("timestamp: 1\nmessage: real\n");
+        byte[] full = object("blob", "parent: " + parent.name() + "\nnot a commit\n");
+        ObjectId blob = ObjectId.hash(full);
+        pack(blob, full);
+
+        assertTrue(ObjectUtils.hasObject(cemDir, blob));
+        assertFalse(ObjectUtils.isCommit(cemDir, blob));
+        assertNotACommit(blob);
+        CommitGraph graph = CommitGraph.of(cemDir);
+        try {
+            graph.add(blob);
+            fail("a blob must not be added to the commit-graph");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not a commit"));
+        }
+        assertFalse(graph.contains(blob));
+    }
+
+    public void testLooseBlobIsNotACommit() throws IOException {
+        byte[] full = object("blob", "some content\n");
+        ObjectId blob = ObjectId.hash(full);
+        ObjectUtils.storeBlob(cemDir, blob, full, null);
+        assertTrue(ObjectUtils.hasObject(cemDir, blob));
+        assertFalse(ObjectUtils.isCommit(cemDir, blob));
+    }
+
+    public void testMissingIsNotACommit() throws IOException {
+        assertFalse(ObjectUtils.isCommit(cemDir, ObjectId.hash("nothing".getBytes(UTF_8))));
+    }
+
+    private void assertNotACommit(ObjectId id) {
+        try {
+            ObjectUtils.readCommitText(cemDir, id);
+            fail("a blob must not be read as a commit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not a commit"));
+        }
+    }
+
+    private ObjectId storeLooseCommit(String body) throws IOException {
+        byte[] full = object("commit", body);
+        ObjectId id = ObjectId.hash(full);
+        ObjectUtils.writeLoose(ObjectUtils.loosePath(cemDir.resolve("ECHO"), id), ObjectUtils.zlibCompress(full));
+        return id;
+    }
+
+    private void pack(ObjectId id, byte[] full) throws IOException {
+        try (PackWriter writer = new PackWriter(cemDir)) {
+            writer.add(id, ObjectUtils.zlibCompress(full));
+            writer.finish();
+        }
+    }
+
+    private static byte[] object(String type, String body) {
+        byte[] content = body.getBytes(UTF_8);
+        return (type + " " + content.length + "\0" + body).getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,168 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Delta round trips, the bounds {@link Delta#apply} checks on corrupt input,
+ * and delta chains in the object store up to MAX_DELTA_DEPTH.
+ */
+public class DeltaTest extends TestCase {
+    private Path cemDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        cemDir = Files.createTempDirectory("cem-delta-test").resolve(".cemount");
+        Files.createDirectories(cemDir.resolve("objects"));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(cemDir.getParent())) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] base = version(0);
+        byte[] target = version(1);
+        byte[] delta = Delta.create(base, target);
+        assertTrue(delta.length < target.length / 10);
+        assertTrue(Arrays.equals(target, Delta.apply(base, delta, 0)));
+    }
+
+    public void testRoundTripOfShortAndEmptyInput() throws IOException {
+        byte[] target = "short".getBytes(UTF_8);
+        assertTrue(Arrays.equals(target, Delta.apply(new byte[0], Delta.create(new byte[0], target), 0)));
+        assertEquals(0, Delta.apply(version(0), Delta.create(version(0), new byte[0]), 0).length);
+    }
+
+    public void testApplyAtOffset() throws IOException {
+        byte[] base = version(0);
+        byte[] delta = Delta.create(base, version(2));
+        byte[] shifted = new byte[delta.length + 7];
+        System.arraycopy(delta, 0, shifted, 7, delta.length);
+        assertTrue(Arrays.equals(version(2), Delta.apply(base, shifted, 7)));
+    }
+
+    public void testCopyPastTheBaseIsRejected() {
+        byte[] base = new byte[100];
+        assertCorrupt(base, delta(10, 1, 95, 10), "copy out of range");
+        assertCorrupt(base, delta(10, 1, 101, 0), "copy out of range");
+        // offset + length wraps past Long.MAX_VALUE
+        assertCorrupt(base, delta(10, 1, 50, Long.MAX_VALUE), "copy out of range");
+    }
+
+    public void testCopyPastTheResultIsRejected() {
+        assertCorrupt(new byte[100], delta(10, 1, 0, 20), "copy out of range");
+    }
+
+    public void testInsertPastTheDeltaIsRejected() {
+        assertCorrupt(new byte[0], delta(10, 2, 10), "insert out of range");
+    }
+
+    public void testTruncatedDeltaIsRejected() throws IOException {
+        byte[] base = version(0);
+        byte[] delta = Delta.create(base, version(1));
+        for (int cut : new int[] {1, 2, delta.length / 2}) {
+            try {
+                Delta.apply(base, Arrays.copyOf(delta, delta.length - cut), 0);
+                fail("a delta cut by " + cut + " bytes must not apply");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    public void testUnknownOpAndLongVarintAreRejected() {
+        assertCorrupt(new byte[0], delta(1, 9), "unknown op");
+        byte[] longVarint = new byte[11];
+        Arrays.fill(longVarint, (byte) 0x80);
+        assertCorrupt(new byte[0], longVarint, "varint too long");
+    }
+
+    public void testChainStopsAtMaxDepth() throws IOException {
+        int versions = ObjectUtils.MAX_DELTA_DEPTH + 2;
+        ObjectId[] ids = new ObjectId[versions];
+        for (int v = 0; v < versions; v++) {
+            byte[] full = blob(version(v));
+            ids[v] = ObjectId.hash(full);
+            ObjectUtils.storeBlob(cemDir, ids[v], full, v == 0 ? null : ids[v - 1]);
+        }
+        assertNull(ObjectUtils.deltaBase(ObjectUtils.openObject(cemDir, ids[0])));
+        for (int v = 1; v <= ObjectUtils.MAX_DELTA_DEPTH; v++) {
+            assertEquals(ids[v - 1], ObjectUtils.deltaBase(ObjectUtils.openObject(cemDir, ids[v])));
+        }
+        // one more would be MAX_DELTA_DEPTH + 1 deep, so it is stored in full
+        assertNull(ObjectUtils.deltaBase(ObjectUtils.openObject(cemDir, ids[versions - 1])));
+        for (int v = 0; v < versions; v++) {
+            assertTrue(Arrays.equals(blob(version(v)), ObjectUtils.readObject(cemDir, ids[v])));
+        }
+    }
+
+    public void testOversizedBaseIsNotUsed() throws IOException {
+        byte[] big = new byte[16 * 1024 * 1024 + 1];
+        byte[] bigFull = blob(big);
+        ObjectId bigId = ObjectId.hash(bigFull);
+        ObjectUtils.storeBlob(cemDir, bigId, bigFull, null);
+
+        byte[] small = blob(new byte[4096]);
+        ObjectId smallId = ObjectId.hash(small);
+        ObjectUtils.storeBlob(cemDir, smallId, small, bigId);
+        assertNull(ObjectUtils.deltaBase(ObjectUtils.openObject(cemDir, smallId)));
+        assertTrue(Arrays.equals(small, ObjectUtils.readObject(cemDir, smallId)));
+    }
+
+    private static void assertCorrupt(byte[] base, byte[] delta, String message) {
+        try {
+            Delta.apply(base, delta, 0);
+            fail("corrupt delta must not apply: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    /** A delta written by hand: the result size, then ops and their varints. */
+    private static byte[] delta(long size, long... opsAndArgs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Delta.writeVarint(out, size);
+        boolean op = true;
+        int args = 0;
+        for (long v : opsAndArgs) {
+            if (op) {
+                out.write((int) v);
+                args = v == 1 ? 2 : 1;
+                op = false;
+            } else {
+                Delta.writeVarint(out, v);
+                op = --args == 0;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** A few KB of lines, with line 40 changed per version. */
+    private static byte[] version(int v) {
+        StringBuilder sb = new StringBuilder();
+        for (int line = 0; line < 200; line++) {
+            sb.append(line == 40 ? "changed in version " + v : "line " + line + " stays the same").append('\n');
+        }
+        return sb.toString().getBytes(UTF_8);
+    }
+
+    private static byte[] blob(byte[] content) {
+        byte[] hdr = ("blob " + content.length + "\0").getBytes(UTF_8);
+        byte[] full = Arrays.copyOf(hdr, hdr.length + content.length);
+        System.arraycopy(content, 0, full, hdr.length, content.length);
+        return full;
+    }
+}
@@ -0,0 +1,153 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+import junit.framework.TestCase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * v2 framing over a loopback socket: every message type round trips, and a
+ * truncated frame or a length over MAX_FRAME from the peer is refused.
+ */
+public class FrameTransportTest extends TestCase {
+    private ServerSocket listener;
+    private Socket peer;
+    private FrameTransport transport;
+    private Path dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        peer = new Socket(listener.getInetAddress(), listener.getLocalPort());
+        Socket socket = listener.accept();
+        transport = new FrameTransport(socket, new BufferedInputStream(socket.getInputStream()),
+                new BufferedOutputStream(socket.getOutputStream()));
+        dir = Files.createTempDirectory("cem-frame-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        transport.close();
+        peer.close();
+        listener.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        ObjectId id = ObjectId.hash("x".getBytes(UTF_8));
+        byte[] small = "small".getBytes(UTF_8);
+        byte[] large = new byte[20_000];
+        Arrays.fill(large, (byte) 7);
+        try (FrameTransport echo = peerTransport()) {
+            echo.writeText("héllo");
+            echo.writeId(id);
+            echo.writeId(id);
+            echo.writeEnd();
+            echo.writeData(small);
+            echo.writeData(small);
+            echo.writeData(large);
+            echo.writeData(new byte[0]);
+            echo.flush();
+
+            assertEquals("héllo", transport.readText());
+            assertEquals(id, transport.readId());
+            assertEquals(id, transport.readIdOrEnd());
+            assertNull(transport.readIdOrEnd());
+            assertTrue(Arrays.equals(small, transport.readData()));
+            assertTrue(Arrays.equals(small, transport.readData(dir.resolve("a"), 10)));
+            assertNull(transport.readData(dir.resolve("b"), 10));
+            assertTrue(Arrays.equals(large, Files.readAllBytes(dir.resolve("b"))));
+            assertEquals(0, transport.readData().length);
+        }
+        assertNull(transport.readText());
+    }
+
+    public void testTruncatedFrameIsRejected() throws IOException {
+        DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+        out.writeByte(FrameTransport.DATA);
+        out.writeInt(100);
+        out.write(new byte[10]);
+        out.flush();
+        peer.shutdownOutput();
+        try {
+            transport.readData();
+            fail("a frame cut short must not be read");
+        } catch (EOFException expected) {
+        }
+    }
+
+    public void testTruncatedHeaderIsRejected() throws IOException {
+        OutputStream out = peer.getOutputStream();
+        out.write(new byte[] {FrameTransport.TEXT, 0, 0});
+        out.flush();
+        peer.shutdownOutput();
+        try {
+            transport.readText();
+            fail("a frame header cut short must not be read");
+        } catch (EOFException expected) {
+        }
+    }
+
+    public void testOversizedFrameClosesTheConnection() throws IOException {
+        DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+        out.writeByte(FrameTransport.TEXT);
+        out.writeInt(FrameTransport.MAX_FRAME + 1);
+        out.flush();
+        try {
+            transport.readText();
+            fail("a frame over MAX_FRAME must not be allocated");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bad frame length"));
+        }
+        assertTrue(transport.detach().isClosed());
+    }
+
+    public void testNegativeLengthClosesTheConnection() throws IOException {
+        DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+        out.writeByte(FrameTransport.DATA);
+        out.writeInt(-1);
+        out.flush();
+        try {
+            transport.readData(dir.resolve("x"));
+            fail("a negative frame length must be refused");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bad frame length"));
+        }
+        assertTrue(transport.detach().isClosed());
+    }
+
+    public void testWrongIdLengthIsRejected() throws IOException {
+        DataOutputStream out = new DataOutputStream(peer.getOutputStream());
+        out.writeByte(FrameTransport.ID);
+        out.writeInt(19);
+        out.flush();
+        try {
+            transport.readId();
+            fail("an id frame must be 20 bytes");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bad id frame length"));
+        }
+    }
+
+    private FrameTransport peerTransport() throws IOException {
+        return new FrameTransport(peer, new BufferedInputStream(peer.getInputStream()),
+                new BufferedOutputStream(peer.getOutputStream()));
+    }
+}
@@ -0,0 +1,103 @@
+package com.myname.cemount.server;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * v1 data lengths over a loopback socket: the same limits as the v2 frames, so a
+ * bad length from the peer is an IOException, never an unchecked one.
+ */
+public class LineTransportTest extends TestCase {
+    private ServerSocket listener;
+    private Socket peer;
+    private LineTransport transport;
+    private Path dir;
+
+    @Override
+    protected void setUp() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        peer = new Socket(listener.getInetAddress(), listener.getLocalPort());
+        Socket socket = listener.accept();
+        transport = new LineTransport(socket, new BufferedInputStream(socket.getInputStream()),
+                new BufferedOutputStream(socket.getOutputStream()), null);
+        dir = Files.createTempDirectory("cem-line-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        transport.close();
+        peer.close();
+        listener.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] large = new byte[20_000];
+        Arrays.fill(large, (byte) 7);
+        send("5\nsmall" + "5\nsmall");
+        OutputStream out = peer.getOutputStream();
+        out.write("20000\n".getBytes(UTF_8));
+        out.write(large);
+        out.flush();
+        assertTrue(Arrays.equals("small".getBytes(UTF_8), transport.readData()));
+        assertTrue(Arrays.equals("small".getBytes(UTF_8), transport.readData(dir.resolve("a"), 10)));
+        assertNull(transport.readData(dir.resolve("b"), 10));
+        assertTrue(Arrays.equals(large, Files.readAllBytes(dir.resolve("b"))));
+    }
+
+    public void testNegativeLengthClosesTheConnection() throws IOException {
+        send("-1\n");
+        assertRejected("bad data length", () -> transport.readData(dir.resolve("x"), 10));
+    }
+
+    public void testLengthThatIsNotANumberClosesTheConnection() throws IOException {
+        send("ten\n");
+        assertRejected("bad data length", () -> transport.readData(dir.resolve("x")));
+    }
+
+    public void testOversizedDataWithNowhereToStreamIsRejected() throws IOException {
+        send((FrameTransport.MAX_FRAME + 1) + "\n");
+        assertRejected("data too large", () -> transport.readData());
+    }
+
+    public void testLengthPastAnIntIsRejected() throws IOException {
+        send("3000000000\n");
+        assertRejected("bad data length", () -> transport.readData(dir.resolve("x")));
+    }
+
+    private interface Read {
+        void run() throws IOException;
+    }
+
+    private void assertRejected(String message, Read read) {
+        try {
+            read.run();
+            fail("a bad length must be refused: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+        assertTrue(transport.detach().isClosed());
+    }
+
+    private void send(String text) throws IOException {
+        OutputStream out = peer.getOutputStream();
+        out.write(text.getBytes(UTF_8));
+        out.flush();
+    }
+}
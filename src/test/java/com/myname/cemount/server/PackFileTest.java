@@ -0,0 +1,151 @@
+package com.myname.cemount.server;
+
+import com.myname.cemount.core.ObjectId;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Round trips through PackWriter and PackFile, and the fanout edges: ids that
+ * start with 0x00 and 0xff sit in the first and last fanout bucket.
+ */
+public class PackFileTest extends TestCase {
+    private static final ObjectId LOW  = ObjectId.fromHex("0000000000000000000000000000000000000000");
+    private static final ObjectId LOW2 = ObjectId.fromHex("00ffffffffffffffffffffffffffffffffffffff");
+    private static final ObjectId MID  = ObjectId.fromHex("7f00000000000000000000000000000000000001");
+    private static final ObjectId HIGH = ObjectId.fromHex("ffffffffffffffffffffffffffffffffffffffff");
+
+    private Path cemDir;
+
+    @Override
+    protected void setUp() throws IOException {
+        cemDir = Files.createTempDirectory("cem-pack-test").resolve(".cemount");
+        Files.createDirectories(cemDir.resolve("objects"));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(cemDir.getParent())) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    public void testRoundTripWithFanoutEdges() throws IOException {
+        ObjectId[] ids = { HIGH, MID, LOW2, LOW };
+        try (PackWriter writer = new PackWriter(cemDir)) {
+            for (ObjectId id : ids) assertTrue(writer.add(id, data(id)));
+            assertFalse(writer.add(LOW, data(LOW)));
+            assertEquals(4, writer.count());
+            writer.finish();
+        }
+
+        PackFile pack = PackFile.packs(cemDir).get(0);
+        assertEquals(4, pack.size());
+        for (ObjectId id : ids) {
+            assertTrue(PackFile.contains(cemDir, id));
+            assertEquals(ByteBuffer.wrap(data(id)), PackFile.open(cemDir, id));
+        }
+        // sorted in the index, 0x00 first and 0xff last
+        assertEquals(LOW, pack.idAt(0));
+        assertEquals(HIGH, pack.idAt(3));
+        assertFalse(PackFile.contains(cemDir, ObjectId.fromHex("0000000000000000000000000000000000000001")));
+        assertFalse(PackFile.contains(cemDir, ObjectId.fromHex("fffffffffffffffffffffffffffffffffffffffe")));
+        assertNull(PackFile.open(cemDir, ObjectId.fromHex("8000000000000000000000000000000000000000")));
+    }
+
+    public void testEmptyBuckets() throws IOException {
+        try (PackWriter writer = new PackWriter(cemDir)) {
+            writer.add(HIGH, data(HIGH));
+            writer.finish();
+        }
+        assertTrue(PackFile.contains(cemDir, HIGH));
+        assertFalse(PackFile.contains(cemDir, LOW));
+        assertFalse(PackFile.contains(cemDir, MID));
+    }
+
+    public void testBadIndexMagicIsRejected() throws IOException {
+        Path idx = idxOf(writeOne());
+        try (FileChannel ch = FileChannel.open(idx, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.allocate(4).putInt(0, 0x12345678), 0);
+        }
+        try {
+            PackFile.packs(cemDir);
+            fail("a corrupt index must not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not a pack index"));
+        }
+    }
+
+    public void testTruncatedIndexIsRejected() throws IOException {
+        Path idx = idxOf(writeOne());
+        try (FileChannel ch = FileChannel.open(idx, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 10);
+        }
+        assertBadIndex("truncated pack index");
+    }
+
+    public void testIndexCutInsideTheFanoutIsRejected() throws IOException {
+        Path idx = idxOf(writeOne());
+        try (FileChannel ch = FileChannel.open(idx, StandardOpenOption.WRITE)) {
+            ch.truncate(100);
+        }
+        assertBadIndex("truncated pack index");
+    }
+
+    public void testNonMonotonicFanoutIsRejected() throws IOException {
+        Path idx = idxOf(writeOne());
+        // MID starts with 0x7f: buckets before it count 0, so 1 at 0x10 goes down again at 0x11
+        try (FileChannel ch = FileChannel.open(idx, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.allocate(4).putInt(0, 1), 8 + 0x10 * 4);
+        }
+        assertBadIndex("corrupt pack index fanout");
+    }
+
+    public void testTruncatedPackIsRejected() throws IOException {
+        Path pack = writeOne();
+        try (FileChannel ch = FileChannel.open(pack, StandardOpenOption.WRITE)) {
+            ch.truncate(PackFile.HEADER_SIZE + 10);
+        }
+        try {
+            PackFile.open(cemDir, MID);
+            fail("an entry past the end of the pack must not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("truncated pack"));
+        }
+    }
+
+    private void assertBadIndex(String message) {
+        try {
+            PackFile.packs(cemDir);
+            fail("a corrupt index must not be read: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private Path writeOne() throws IOException {
+        try (PackWriter writer = new PackWriter(cemDir)) {
+            writer.add(MID, data(MID));
+            return writer.finish();
+        }
+    }
+
+    private static Path idxOf(Path pack) {
+        String name = pack.getFileName().toString();
+        return pack.resolveSibling(name.substring(0, name.length() - PackFile.PACK_EXT.length()) + PackFile.IDX_EXT);
+    }
+
+    /** Stored bytes that differ per id. */
+    private static byte[] data(ObjectId id) throws IOException {
+        return ObjectUtils.zlibCompress(("blob 40\0" + id.name()).getBytes(UTF_8));
+    }
+}